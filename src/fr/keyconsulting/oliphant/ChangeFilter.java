@@ -0,0 +1,183 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counting Bloom filter over the objects for which we received change notifications, or loaded a newer version than a previous load.
+// Counters are 4 bits wide, packed 8 per int, and updated with CAS so that lookups never lock.
+public class ChangeFilter
+	{
+	private static final int COUNTER_BITS = 4;
+	private static final int COUNTERS_PER_WORD = 32 / COUNTER_BITS;
+	private static final int MAX_COUNT = (1 << COUNTER_BITS) - 1; // Saturated counters are never decremented again
+
+	private final AtomicIntegerArray words;
+	private final int size; // Number of counters
+	private final int hashes; // Number of counters per key
+
+	private final AtomicInteger entries = new AtomicInteger();
+	private final AtomicLong negatives = new AtomicLong();
+	private final AtomicLong positives = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	public ChangeFilter(int expectedEntries, double falsePositiveRate)
+		{
+		if (expectedEntries < 1) {expectedEntries = 1;}
+		if ((falsePositiveRate <= 0) || (falsePositiveRate >= 1)) {falsePositiveRate = 0.01;}
+		long bits = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		size = (int) Math.min(Math.max(bits, COUNTERS_PER_WORD), Integer.MAX_VALUE - COUNTERS_PER_WORD);
+		hashes = Math.max(1, (int) Math.round((double) size / expectedEntries * Math.log(2)));
+		words = new AtomicIntegerArray((size + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+		}
+
+	public void add(String tableName, String id)
+		{
+		long hash = hash(tableName, id);
+		for (int i=0; i<hashes; i++)
+			{
+			increment(index(hash, i));
+			}
+		entries.incrementAndGet();
+		}
+
+	public void remove(String tableName, String id)
+		{
+		long hash = hash(tableName, id);
+		for (int i=0; i<hashes; i++)
+			{
+			decrement(index(hash, i));
+			}
+		entries.decrementAndGet();
+		}
+
+	public boolean mightContain(String tableName, String id)
+		{
+		long hash = hash(tableName, id);
+		for (int i=0; i<hashes; i++)
+			{
+			if (count(index(hash, i)) == 0)
+				{
+				negatives.incrementAndGet();
+				return false;
+				}
+			}
+		positives.incrementAndGet();
+		return true;
+		}
+
+	public void recordFalsePositive()
+		{
+		falsePositives.incrementAndGet();
+		}
+
+	public long getNegativeCount()
+		{
+		return negatives.get();
+		}
+
+	public long getPositiveCount()
+		{
+		return positives.get();
+		}
+
+	public long getFalsePositiveCount()
+		{
+		return falsePositives.get();
+		}
+
+	public int getEntryCount()
+		{
+		return entries.get();
+		}
+
+	public double getObservedFalsePositiveRate()
+		{
+		long lookups = negatives.get() + positives.get();
+		return (lookups == 0) ? 0 : (double) falsePositives.get() / lookups;
+		}
+
+	public double getExpectedFalsePositiveRate()
+		{
+		return Math.pow(1 - Math.exp(-(double) hashes * entries.get() / size), hashes);
+		}
+
+	public String toString()
+		{
+		return "ChangeFilter[counters="+size+",hashes="+hashes+",entries="+entries.get()+",negatives="+negatives.get()+",positives="+positives.get()+",falsePositives="+falsePositives.get()+",expectedFalsePositiveRate="+getExpectedFalsePositiveRate()+"]";
+		}
+
+	private int index(long hash, int i)
+		{
+		// Double hashing, see Kirsch and Mitzenmacher, "Less hashing, same performance"
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		int combined = h1 + i * h2;
+		return (combined & Integer.MAX_VALUE) % size;
+		}
+
+	private int count(int index)
+		{
+		int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+		return (words.get(index / COUNTERS_PER_WORD) >>> shift) & MAX_COUNT;
+		}
+
+	private void increment(int index)
+		{
+		int word = index / COUNTERS_PER_WORD;
+		int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+		while (true)
+			{
+			int current = words.get(word);
+			int counter = (current >>> shift) & MAX_COUNT;
+			if (counter == MAX_COUNT) {return;}
+			if (words.compareAndSet(word, current, current + (1 << shift))) {return;}
+			}
+		}
+
+	private void decrement(int index)
+		{
+		int word = index / COUNTERS_PER_WORD;
+		int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+		while (true)
+			{
+			int current = words.get(word);
+			int counter = (current >>> shift) & MAX_COUNT;
+			if ((counter == 0) || (counter == MAX_COUNT)) {return;}
+			if (words.compareAndSet(word, current, current - (1 << shift))) {return;}
+			}
+		}
+
+	private static long hash(String tableName, String id)
+		{
+		long h = tableName.hashCode() * 0x9E3779B97F4A7C15L + id.hashCode();
+		// MurmurHash3 64-bit finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+		}
+	}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.io.Serializable;
+
+import org.hibernate.cfg.Configuration;
+import org.hibernate.mapping.Collection;
+import org.hibernate.mapping.Column;
+import org.hibernate.type.NullableType;
+import org.hibernate.type.Type;
+
+// Per collection role metadata. Changes to the rows of a collection table are notified with the collection table and key column
+// as table name, and the owner id as id, since several roles can share the same table and key column.
+public class CollectionInfo
+	{
+	private final String role;
+	private final String key;
+	private final Type ownerIdType;
+
+	public CollectionInfo(Collection collection)
+		{
+		role = collection.getRole();
+		key = getKey(collection);
+		ownerIdType = collection.getOwner().getIdentifier().getType();
+		}
+
+	public String getRole()
+		{
+		return role;
+		}
+
+	// Name under which changes are notified, shared by the triggers and the listener
+	public String getKey()
+		{
+		return key;
+		}
+
+	public Serializable getOwnerId(String id)
+		{
+		if (ownerIdType instanceof NullableType) {return (Serializable) ((NullableType) ownerIdType).fromStringValue(id);}
+		return id;
+		}
+
+	public static String getKey(Collection collection)
+		{
+		return collection.getCollectionTable().getName().toLowerCase()+"."+getKeyColumn(collection).getName().toLowerCase();
+		}
+
+	public static Column getKeyColumn(Collection collection)
+		{
+		return (Column) collection.getKey().getColumnIterator().next();
+		}
+
+	// Only collections kept in the L2 cache can become stale, the others are loaded again by each session.
+	// Their owner must be monitored, and referenced by its single column primary key.
+	public static boolean isTracked(Configuration config, Collection collection)
+		{
+		if ("false".equals(config.getProperty("oliphant.collections.enabled"))) {return false;}
+		if ("false".equals(config.getProperty("hibernate.cache.use_second_level_cache"))) {return false;}
+		if (collection.getCacheConcurrencyStrategy() == null) {return false;}
+		if ((collection.getReferencedPropertyName() != null) || (collection.getKey().getColumnSpan() != 1)) {return false;}
+		return EntityInfo.isMonitored(config, collection.getOwner());
+		}
+	}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.util.Iterator;
+
+import org.hibernate.EntityMode;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.Formula;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.mapping.Property;
+import org.hibernate.persister.entity.EntityPersister;
+
+// Per entity metadata, computed once from the mapping so that event handling does not have to look it up each time
+public class EntityInfo
+	{
+	private final String entityName;
+	private final String tableName;
+	private final boolean monitored;
+	private final boolean refreshedWhenStale;
+	private final boolean versioned;
+	private final String xminProperty; // Property mapped on the xmin system column, used as version by entities without one, may be null
+
+	public EntityInfo(Configuration config, String entityName)
+		{
+		PersistentClass c = config.getClassMapping(entityName);
+		this.entityName = entityName;
+		this.tableName = c.getTable().getName().toLowerCase();
+		this.monitored = isMonitored(config, c);
+		this.xminProperty = c.isVersioned() ? null : getXminProperty(c);
+		this.versioned = c.isVersioned() || (xminProperty != null);
+
+		// The entity specific policy overrides the global one
+		String stalePolicy = config.getProperty("oliphant.stale_policy."+entityName);
+		if (stalePolicy == null) {stalePolicy = config.getProperty("oliphant.stale_policy");}
+		if ((stalePolicy == null) || stalePolicy.equals("exception")) {refreshedWhenStale = false;}
+		else if (stalePolicy.equals("refresh")) {refreshedWhenStale = true;}
+		else {throw new HibernateException("Unknown Oliphant stale policy for entity "+entityName+" : "+stalePolicy);}
+		}
+
+	public String getEntityName()
+		{
+		return entityName;
+		}
+
+	public String getTableName()
+		{
+		return tableName;
+		}
+
+	public boolean isMonitored()
+		{
+		return monitored;
+		}
+
+	public boolean isRefreshedWhenStale()
+		{
+		return refreshedWhenStale;
+		}
+
+	public boolean isVersioned()
+		{
+		return versioned;
+		}
+
+	public boolean isXminVersioned()
+		{
+		return xminProperty != null;
+		}
+
+	// Version of an object in hand, or null if it has none yet
+	public String getVersion(EntityPersister persister, Object object, EntityMode entityMode)
+		{
+		Object version = (xminProperty == null) ? persister.getVersion(object, entityMode) : persister.getPropertyValue(object, xminProperty, entityMode);
+		return toVersion(version);
+		}
+
+	// Version found in the disassembled state of an object, as kept in the L2 cache
+	public String getVersion(EntityPersister persister, Object[] state)
+		{
+		int property = (xminProperty == null) ? persister.getVersionProperty() : persister.getEntityMetamodel().getPropertyIndex(xminProperty);
+		return toVersion(state[property]);
+		}
+
+	private String toVersion(Object version)
+		{
+		if (version == null) {return null;}
+		return (xminProperty == null) ? version.toString() : VersionRegistry.XID_PREFIX+version;
+		}
+
+	// A read-only property mapped on the xmin column, or on an xmin formula, changes with each update of the row like a version would
+	public static String getXminProperty(PersistentClass c)
+		{
+		for (Iterator i = c.getPropertyIterator(); i.hasNext();)
+			{
+			Property property = (Property) i.next();
+			Iterator columns = property.getColumnIterator();
+			if (!columns.hasNext()) {continue;}
+			Object column = columns.next();
+			if (columns.hasNext()) {continue;}
+			String name = (column instanceof Formula) ? ((Formula) column).getFormula().trim() : ((Column) column).getName();
+			if (name.equalsIgnoreCase("xmin")) {return property.getName();}
+			}
+		return null;
+		}
+
+	// Entity lists in the configuration take precedence over the @Monitored annotation, which takes precedence over the default
+	public static boolean isMonitored(Configuration config, PersistentClass c)
+		{
+		if (isListed(config.getProperty("oliphant.unmonitored_entities"), c.getEntityName())) {return false;}
+		if (isListed(config.getProperty("oliphant.monitored_entities"), c.getEntityName())) {return true;}
+		Class mappedClass = c.getMappedClass();
+		if (mappedClass != null)
+			{
+			Monitored annotation = (Monitored) mappedClass.getAnnotation(Monitored.class);
+			if (annotation != null) {return annotation.value();}
+			}
+		String byDefault = config.getProperty("oliphant.monitor_by_default");
+		return (byDefault == null) || !byDefault.equals("false");
+		}
+
+	private static boolean isListed(String list, String entityName)
+		{
+		if (list == null) {return false;}
+		String[] names = list.split(",");
+		for (int i=0; i<names.length; i++)
+			{
+			if (names[i].trim().equals(entityName)) {return true;}
+			}
+		return false;
+		}
+	}
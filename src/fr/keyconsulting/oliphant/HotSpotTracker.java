@@ -0,0 +1,287 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Finds the objects that show up most often in a stream of events, such as change notifications or stale objects, in fixed memory.
+// Counts are estimated with a Count-Min sketch, and the objects with the highest estimates are kept in a small min-heap.
+// Events are also counted per table, tables being few.
+public class HotSpotTracker
+	{
+	private final int width; // Counters per row of the sketch
+	private final int depth; // Rows of the sketch, one hash function each
+	private final AtomicLongArray sketch;
+	private final ConcurrentHashMap<String,AtomicLong> tableCounts = new ConcurrentHashMap<String,AtomicLong>();
+	private final AtomicLong total = new AtomicLong();
+	private volatile long since = System.currentTimeMillis();
+
+	// Min-heap of the top objects, by estimated count
+	private final String[] heapUids;
+	private final long[] heapCounts;
+	private final Map<String,Integer> heapPositions = new HashMap<String,Integer>();
+	private int heapSize = 0;
+	private volatile long heapMin = 0; // Smallest count in a full heap, lower estimates cannot enter it
+
+	public HotSpotTracker(int width, int depth, int topSize)
+		{
+		this.width = Math.max(width, 16);
+		this.depth = Math.max(depth, 1);
+		sketch = new AtomicLongArray(this.width * this.depth);
+		heapUids = new String[Math.max(topSize, 1)];
+		heapCounts = new long[heapUids.length];
+		}
+
+	public void record(String uid)
+		{
+		total.incrementAndGet();
+		String tableName = uid.substring(0, uid.indexOf('#'));
+		AtomicLong tableCount = tableCounts.get(tableName);
+		if (tableCount == null)
+			{
+			tableCounts.putIfAbsent(tableName, new AtomicLong());
+			tableCount = tableCounts.get(tableName);
+			}
+		tableCount.incrementAndGet();
+
+		long hash = hash(uid);
+		long estimate = Long.MAX_VALUE;
+		for (int i=0; i<depth; i++)
+			{
+			estimate = Math.min(estimate, sketch.incrementAndGet(index(hash, i)));
+			}
+		// Objects already in the heap always have a higher estimate than its minimum
+		if (estimate >= heapMin) {offer(uid, estimate);}
+		}
+
+	public long estimate(String uid)
+		{
+		long hash = hash(uid);
+		long estimate = Long.MAX_VALUE;
+		for (int i=0; i<depth; i++)
+			{
+			estimate = Math.min(estimate, sketch.get(index(hash, i)));
+			}
+		return estimate;
+		}
+
+	// Objects with the most events, most frequent first
+	public synchronized List<HotSpot> getTop()
+		{
+		List<HotSpot> top = new ArrayList<HotSpot>(heapSize);
+		for (int i=0; i<heapSize; i++)
+			{
+			top.add(new HotSpot(heapUids[i], heapCounts[i]));
+			}
+		Collections.sort(top, new Comparator<HotSpot>()
+			{
+			public int compare(HotSpot a, HotSpot b)
+				{
+				return (a.getCount() > b.getCount()) ? -1 : ((a.getCount() == b.getCount()) ? 0 : 1);
+				}
+			});
+		return top;
+		}
+
+	public Map<String,Long> getCountsByTable()
+		{
+		Map<String,Long> counts = new HashMap<String,Long>();
+		for (Iterator<Map.Entry<String,AtomicLong>> i = tableCounts.entrySet().iterator(); i.hasNext();)
+			{
+			Map.Entry<String,AtomicLong> entry = i.next();
+			counts.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+			}
+		return counts;
+		}
+
+	// Events per second for each table, since the tracker was created or reset
+	public Map<String,Double> getRatesByTable()
+		{
+		double seconds = Math.max(System.currentTimeMillis() - since, 1) / 1000.0;
+		Map<String,Double> rates = new HashMap<String,Double>();
+		for (Iterator<Map.Entry<String,AtomicLong>> i = tableCounts.entrySet().iterator(); i.hasNext();)
+			{
+			Map.Entry<String,AtomicLong> entry = i.next();
+			rates.put(entry.getKey(), Double.valueOf(entry.getValue().get() / seconds));
+			}
+		return rates;
+		}
+
+	public long getTotal()
+		{
+		return total.get();
+		}
+
+	// Start counting again, for instance to look at the last minutes only
+	public synchronized void reset()
+		{
+		for (int i=0; i<sketch.length(); i++)
+			{
+			sketch.set(i, 0);
+			}
+		tableCounts.clear();
+		total.set(0);
+		for (int i=0; i<heapSize; i++)
+			{
+			heapUids[i] = null;
+			}
+		heapPositions.clear();
+		heapSize = 0;
+		heapMin = 0;
+		since = System.currentTimeMillis();
+		}
+
+	public String toString()
+		{
+		return "HotSpotTracker[total="+total.get()+",tables="+getCountsByTable()+",top="+getTop()+"]";
+		}
+
+	private synchronized void offer(String uid, long count)
+		{
+		Integer position = heapPositions.get(uid);
+		if (position != null)
+			{
+			heapCounts[position.intValue()] = count;
+			siftDown(position.intValue());
+			}
+		else if (heapSize < heapUids.length)
+			{
+			heapUids[heapSize] = uid;
+			heapCounts[heapSize] = count;
+			heapPositions.put(uid, Integer.valueOf(heapSize));
+			siftUp(heapSize);
+			heapSize++;
+			}
+		else if (count > heapCounts[0])
+			{
+			heapPositions.remove(heapUids[0]);
+			heapUids[0] = uid;
+			heapCounts[0] = count;
+			heapPositions.put(uid, Integer.valueOf(0));
+			siftDown(0);
+			}
+		if (heapSize == heapUids.length) {heapMin = heapCounts[0];}
+		}
+
+	private void siftUp(int i)
+		{
+		while (i > 0)
+			{
+			int parent = (i - 1) / 2;
+			if (heapCounts[parent] <= heapCounts[i]) {return;}
+			swap(i, parent);
+			i = parent;
+			}
+		}
+
+	private void siftDown(int i)
+		{
+		while (true)
+			{
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if ((left < heapSize) && (heapCounts[left] < heapCounts[smallest])) {smallest = left;}
+			if ((right < heapSize) && (heapCounts[right] < heapCounts[smallest])) {smallest = right;}
+			if (smallest == i) {return;}
+			swap(i, smallest);
+			i = smallest;
+			}
+		}
+
+	private void swap(int i, int j)
+		{
+		String uid = heapUids[i];
+		long count = heapCounts[i];
+		heapUids[i] = heapUids[j];
+		heapCounts[i] = heapCounts[j];
+		heapUids[j] = uid;
+		heapCounts[j] = count;
+		heapPositions.put(heapUids[i], Integer.valueOf(i));
+		heapPositions.put(heapUids[j], Integer.valueOf(j));
+		}
+
+	private int index(long hash, int row)
+		{
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		return row * width + ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+		}
+
+	private static long hash(String uid)
+		{
+		long h = uid.hashCode() * 0x9E3779B97F4A7C15L;
+		// MurmurHash3 64-bit finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+		}
+
+	public static class HotSpot
+		{
+		private final String uid;
+		private final long count;
+
+		public HotSpot(String uid, long count)
+			{
+			this.uid = uid;
+			this.count = count;
+			}
+
+		public String getUid()
+			{
+			return uid;
+			}
+
+		public String getTableName()
+			{
+			return uid.substring(0, uid.indexOf('#'));
+			}
+
+		public String getId()
+			{
+			return uid.substring(uid.indexOf('#') + 1);
+			}
+
+		public long getCount()
+			{
+			return count; // estimated, never lower than the real count
+			}
+
+		public String toString()
+			{
+			return uid+"="+count;
+			}
+		}
+	}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.cfg.Configuration;
+
+// What a session factory sees of the NotificationHub of its database. Notifications come from the hub, while versions are
+// queried by a listener of the session factory's own, which knows its entities but is never set up.
+public class HubNotifyListener implements SpecificNotifyListener
+	{
+	private final SpecificNotifyListener delegate;
+	private Configuration config;
+	private NotificationHandler handler;
+	private volatile NotificationHub hub;
+
+	public HubNotifyListener(SpecificNotifyListener delegate)
+		{
+		this.delegate = delegate;
+		}
+
+	public void prepare(Configuration cfg)
+		{
+		config = cfg;
+		delegate.prepare(cfg);
+		}
+
+	public void setUp()
+		{
+		hub = NotificationHub.attach(this, config, delegate.getClass());
+		}
+
+	public void setNotificationHandler(NotificationHandler h)
+		{
+		handler = h;
+		}
+
+	public NotificationHub getHub()
+		{
+		return hub;
+		}
+
+	public List<Notification> getLatestUpdates()
+		{
+		NotificationBuffer buffer = new NotificationBuffer();
+		drainUpdates(buffer);
+		List<Notification> notifs = new ArrayList<Notification>(buffer.size());
+		for (int i=0; i<buffer.size(); i++)
+			{
+			notifs.add(new Notification(buffer, i));
+			}
+		return notifs;
+		}
+
+	// The hub applies what it drains to every session factory before returning, so our own drain lock is not needed
+	public boolean pushesNotifications()
+		{
+		return true;
+		}
+
+	// The hub hands the notifications to every session factory, this one included, nothing is left for the caller
+	public int drainUpdates(NotificationBuffer buffer)
+		{
+		if (hub != null) {hub.drain();}
+		return 0;
+		}
+
+	void notificationsReceived(NotificationBuffer buffer)
+		{
+		if (handler != null) {handler.notificationsReceived(this, buffer);}
+		}
+
+	void notificationsInterrupted()
+		{
+		if (handler != null) {handler.notificationsInterrupted(this);}
+		}
+
+	void notificationsLost()
+		{
+		if (handler != null) {handler.notificationsLost(this);}
+		}
+
+	// Our delegate knows our entities, the hub lends it a connection
+	public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids)
+		{
+		NotificationHub h = hub; // null before setUp and after tearDown
+		if (h == null) {return delegate.getCurrentVersions(entityName, ids);}
+		return h.getCurrentVersions(delegate, entityName, ids);
+		}
+
+	public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids, Connection connection)
+		{
+		return delegate.getCurrentVersions(entityName, ids, connection);
+		}
+
+	// Same stream of changes for all the session factories. Without a hub, the watermark matches no other one, so that a snapshot
+	// written then is resynchronized when read.
+	public String getWatermark()
+		{
+		NotificationHub h = hub; // null before setUp and after tearDown
+		if (h == null) {return "detached:"+System.currentTimeMillis();}
+		return h.getWatermark();
+		}
+
+	public void tearDown()
+		{
+		NotificationHub.detach(this);
+		hub = null;
+		delegate.tearDown();
+		}
+	}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+
+import org.hibernate.HibernateException;
+
+// Volatile and ordered accesses to a memory mapped file, at offsets from the start of the mapping, in native byte order.
+// They are done by Unsafe, which is only looked up by reflection and called through method handles : the compiler warns about
+// every use of the class by its name, and these warnings cannot be suppressed. The handles are constants, so the JIT compiles
+// the calls to them as direct calls to Unsafe.
+class MappedMemory
+	{
+	private static final Object UNSAFE;
+	private static final MethodHandle GET_LONG_VOLATILE;
+	private static final MethodHandle PUT_LONG_VOLATILE;
+	private static final MethodHandle PUT_ORDERED_LONG;
+	private static final MethodHandle GET_INT_VOLATILE;
+	private static final MethodHandle PUT_INT_VOLATILE;
+	private static final MethodHandle PUT_ORDERED_INT;
+	private static final long ADDRESS_OFFSET; // Of the address field of buffers
+
+	static
+		{
+		try
+			{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			UNSAFE = f.get(null);
+			GET_LONG_VOLATILE = getHandle(unsafeClass, "getLongVolatile", Object.class, long.class);
+			PUT_LONG_VOLATILE = getHandle(unsafeClass, "putLongVolatile", Object.class, long.class, long.class);
+			PUT_ORDERED_LONG = getHandle(unsafeClass, "putOrderedLong", Object.class, long.class, long.class);
+			GET_INT_VOLATILE = getHandle(unsafeClass, "getIntVolatile", Object.class, long.class);
+			PUT_INT_VOLATILE = getHandle(unsafeClass, "putIntVolatile", Object.class, long.class, int.class);
+			PUT_ORDERED_INT = getHandle(unsafeClass, "putOrderedInt", Object.class, long.class, int.class);
+			Method objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+			ADDRESS_OFFSET = (Long) objectFieldOffset.invoke(UNSAFE, Buffer.class.getDeclaredField("address"));
+			}
+		catch (Exception e)
+			{
+			throw new ExceptionInInitializerError(e);
+			}
+		}
+
+	private final long address; // Of the mapping
+
+	MappedMemory(MappedByteBuffer buffer)
+		{
+		try
+			{
+			address = (Long) UNSAFE.getClass().getMethod("getLong", Object.class, long.class).invoke(UNSAFE, buffer, ADDRESS_OFFSET);
+			}
+		catch (Exception e)
+			{
+			throw new HibernateException("Could not find the address of a memory mapped file", e);
+			}
+		}
+
+	long getLongVolatile(int offset)
+		{
+		try
+			{
+			return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address + offset);
+			}
+		catch (Throwable t)
+			{
+			throw propagate(t);
+			}
+		}
+
+	void putLongVolatile(int offset, long value)
+		{
+		try
+			{
+			PUT_LONG_VOLATILE.invokeExact((Object) null, address + offset, value);
+			}
+		catch (Throwable t)
+			{
+			throw propagate(t);
+			}
+		}
+
+	// Becomes visible after every store made before it, but later loads may pass it
+	void putOrderedLong(int offset, long value)
+		{
+		try
+			{
+			PUT_ORDERED_LONG.invokeExact((Object) null, address + offset, value);
+			}
+		catch (Throwable t)
+			{
+			throw propagate(t);
+			}
+		}
+
+	int getIntVolatile(int offset)
+		{
+		try
+			{
+			return (int) GET_INT_VOLATILE.invokeExact((Object) null, address + offset);
+			}
+		catch (Throwable t)
+			{
+			throw propagate(t);
+			}
+		}
+
+	void putIntVolatile(int offset, int value)
+		{
+		try
+			{
+			PUT_INT_VOLATILE.invokeExact((Object) null, address + offset, value);
+			}
+		catch (Throwable t)
+			{
+			throw propagate(t);
+			}
+		}
+
+	void putOrderedInt(int offset, int value)
+		{
+		try
+			{
+			PUT_ORDERED_INT.invokeExact((Object) null, address + offset, value);
+			}
+		catch (Throwable t)
+			{
+			throw propagate(t);
+			}
+		}
+
+	private static MethodHandle getHandle(Class<?> unsafeClass, String name, Class<?>... parameterTypes) throws Exception
+		{
+		return MethodHandles.lookup().unreflect(unsafeClass.getMethod(name, parameterTypes)).bindTo(UNSAFE);
+		}
+
+	// Unsafe throws nothing for valid offsets
+	private static RuntimeException propagate(Throwable t)
+		{
+		if (t instanceof RuntimeException) {return (RuntimeException) t;}
+		if (t instanceof Error) {throw (Error) t;}
+		return new HibernateException(t);
+		}
+	}
@@ -22,13 +22,53 @@
 package fr.keyconsulting.oliphant;
 public class Notification
 	{
+	public enum Operation
+		{
+		INSERT('I'), UPDATE('U'), DELETE('D'), COLLECTION('C'); // COLLECTION : rows of a collection table changed, the id is the owner's
+
+		private final char code;
+
+		Operation(char code)
+			{
+			this.code = code;
+			}
+
+		public char getCode()
+			{
+			return code;
+			}
+
+		public static Operation fromCode(char code)
+			{
+			switch (code)
+				{
+				case 'I': return INSERT;
+				case 'U': return UPDATE;
+				case 'D': return DELETE;
+				case 'C': return COLLECTION;
+				default: throw new IllegalArgumentException("Unknown notification operation : "+code);
+				}
+			}
+		}
+
 	private String version;
 	private String uid;
+	private Operation operation;
+	private long txid;
 
 	public Notification(String[] infos)
 		{
 		uid = infos[0];
 		version = infos[1];
+		operation = version.equals(VersionRegistry.DELETED) ? Operation.DELETE : Operation.UPDATE;
+		}
+
+	public Notification(NotificationBuffer buffer, int i)
+		{
+		uid = buffer.getUid(i);
+		version = buffer.getVersion(i);
+		operation = buffer.getOperation(i);
+		txid = buffer.getTxid(i);
 		}
 	
 	public String getVersion()
@@ -50,4 +90,24 @@ public class Notification
 		{
 		uid = u;
 		}
+
+	public Operation getOperation()
+		{
+		return operation;
+		}
+
+	public void setOperation(Operation o)
+		{
+		operation = o;
+		}
+
+	public long getTxid()
+		{
+		return txid;
+		}
+
+	public void setTxid(long t)
+		{
+		txid = t;
+		}
 	}
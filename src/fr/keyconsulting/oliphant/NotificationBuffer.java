@@ -0,0 +1,237 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Reusable batch of notifications, stored as columns of primitives so that draining them only keeps the payloads.
+// Ids, versions and uids are kept as offsets in the raw payload, and a new string is made each time one is asked for.
+// Payloads have the form table#id###version###operation###txid, where operation is I, U, D or C.
+public class NotificationBuffer
+	{
+	private static final Logger LOG = LoggerFactory.getLogger(NotificationBuffer.class);
+	private static final String SEPARATOR = "###";
+
+	private int size = 0;
+	private int skipped = 0; // Malformed payloads left out since the last clear
+	private String[] payloads;
+	private String[] tableNames;
+	private int[] tableOrdinals; // Position of the table in the list of known tables, -1 if unknown
+	private int[] idStarts;
+	private int[] idEnds;
+	private int[] versionStarts;
+	private int[] versionEnds;
+	private Notification.Operation[] operations;
+	private long[] txids;
+
+	public NotificationBuffer()
+		{
+		this(256);
+		}
+
+	public NotificationBuffer(int capacity)
+		{
+		allocate(Math.max(capacity, 1));
+		}
+
+	public void clear()
+		{
+		for (int i=0; i<size; i++)
+			{
+			payloads[i] = null; // do not keep old payloads alive until they are overwritten
+			}
+		size = 0;
+		skipped = 0;
+		}
+
+	public int size()
+		{
+		return size;
+		}
+
+	// The change a skipped payload stood for is unknown, so the caller should handle the batch as if notifications were lost
+	public int getSkipped()
+		{
+		return skipped;
+		}
+
+	// Parse a payload and append it. Table names are matched against the known ones to share their instances.
+	// A malformed payload, from a trigger of another version for instance, is logged and skipped so that the rest of the batch is kept.
+	public boolean add(String payload, String[] knownTables)
+		{
+		if (size == payloads.length) {grow();}
+
+		int txidSep = payload.lastIndexOf(SEPARATOR);
+		int opSep = (txidSep > 0) ? payload.lastIndexOf(SEPARATOR, txidSep-1) : -1;
+		int versionSep = (opSep > 0) ? payload.lastIndexOf(SEPARATOR, opSep-1) : -1;
+		int tableSep = payload.indexOf('#');
+		Notification.Operation operation;
+		long txid;
+		try
+			{
+			if ((versionSep < 0) || (tableSep <= 0) || (tableSep >= versionSep) || (txidSep != opSep + SEPARATOR.length() + 1))
+				{
+				throw new IllegalArgumentException("Missing separators");
+				}
+			operation = Notification.Operation.fromCode(payload.charAt(opSep + SEPARATOR.length()));
+			txid = parseLong(payload, txidSep + SEPARATOR.length(), payload.length());
+			}
+		catch (IllegalArgumentException e)
+			{
+			LOG.warn("Skipped malformed notification "+payload+" : "+e.getMessage());
+			skipped++;
+			return false;
+			}
+
+		int ordinal = -1;
+		for (int t=0; t<knownTables.length; t++)
+			{
+			if ((knownTables[t].length() == tableSep) && payload.startsWith(knownTables[t]))
+				{
+				ordinal = t;
+				break;
+				}
+			}
+
+		payloads[size] = payload;
+		tableOrdinals[size] = ordinal;
+		tableNames[size] = (ordinal >= 0) ? knownTables[ordinal] : payload.substring(0, tableSep);
+		idStarts[size] = tableSep + 1;
+		idEnds[size] = versionSep;
+		versionStarts[size] = versionSep + SEPARATOR.length();
+		versionEnds[size] = opSep;
+		operations[size] = operation;
+		txids[size] = txid;
+		size++;
+		return true;
+		}
+
+	public String getPayload(int i)
+		{
+		return payloads[i];
+		}
+
+	public String getTableName(int i)
+		{
+		return tableNames[i];
+		}
+
+	public int getTableOrdinal(int i)
+		{
+		return tableOrdinals[i];
+		}
+
+	public String getId(int i)
+		{
+		return payloads[i].substring(idStarts[i], idEnds[i]);
+		}
+
+	public boolean isNumericId(int i)
+		{
+		return isNumeric(payloads[i], idStarts[i], idEnds[i]);
+		}
+
+	public long getNumericId(int i)
+		{
+		return parseLong(payloads[i], idStarts[i], idEnds[i]);
+		}
+
+	public String getVersion(int i)
+		{
+		return payloads[i].substring(versionStarts[i], versionEnds[i]);
+		}
+
+	public String getUid(int i)
+		{
+		return payloads[i].substring(0, idEnds[i]);
+		}
+
+	public Notification.Operation getOperation(int i)
+		{
+		return operations[i];
+		}
+
+	public long getTxid(int i)
+		{
+		return txids[i];
+		}
+
+	private static boolean isNumeric(String s, int start, int end)
+		{
+		if ((start == end) || (end - start > 18)) {return false;}
+		for (int i=start; i<end; i++)
+			{
+			char c = s.charAt(i);
+			if (((c < '0') || (c > '9')) && !((c == '-') && (i == start) && (end - start > 1))) {return false;}
+			}
+		return true;
+		}
+
+	private static long parseLong(String s, int start, int end)
+		{
+		if (!isNumeric(s, start, end)) {throw new NumberFormatException(s.substring(start, end));}
+		boolean negative = (s.charAt(start) == '-');
+		long value = 0;
+		for (int i=(negative ? start+1 : start); i<end; i++)
+			{
+			value = value * 10 + (s.charAt(i) - '0');
+			}
+		return negative ? -value : value;
+		}
+
+	private void allocate(int capacity)
+		{
+		payloads = new String[capacity];
+		tableNames = new String[capacity];
+		tableOrdinals = new int[capacity];
+		idStarts = new int[capacity];
+		idEnds = new int[capacity];
+		versionStarts = new int[capacity];
+		versionEnds = new int[capacity];
+		operations = new Notification.Operation[capacity];
+		txids = new long[capacity];
+		}
+
+	private void grow()
+		{
+		String[] oldPayloads = payloads;
+		String[] oldTableNames = tableNames;
+		int[] oldTableOrdinals = tableOrdinals;
+		int[] oldIdStarts = idStarts;
+		int[] oldIdEnds = idEnds;
+		int[] oldVersionStarts = versionStarts;
+		int[] oldVersionEnds = versionEnds;
+		Notification.Operation[] oldOperations = operations;
+		long[] oldTxids = txids;
+		allocate(size * 2);
+		System.arraycopy(oldPayloads, 0, payloads, 0, size);
+		System.arraycopy(oldTableNames, 0, tableNames, 0, size);
+		System.arraycopy(oldTableOrdinals, 0, tableOrdinals, 0, size);
+		System.arraycopy(oldIdStarts, 0, idStarts, 0, size);
+		System.arraycopy(oldIdEnds, 0, idEnds, 0, size);
+		System.arraycopy(oldVersionStarts, 0, versionStarts, 0, size);
+		System.arraycopy(oldVersionEnds, 0, versionEnds, 0, size);
+		System.arraycopy(oldOperations, 0, operations, 0, size);
+		System.arraycopy(oldTxids, 0, txids, 0, size);
+		}
+	}
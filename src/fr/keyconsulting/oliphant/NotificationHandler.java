@@ -0,0 +1,30 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+// Callbacks from a specific notify listener, which may come from its own threads rather than from a session
+public interface NotificationHandler
+	{
+	void notificationsReceived(SpecificNotifyListener source, NotificationBuffer buffer); // Notifications pushed by a consumer thread of the specific listener, the buffer is reused once this returns
+	void notificationsInterrupted(SpecificNotifyListener source); // Notifications stopped arriving (e.g. the connection was lost), notificationsLost follows once they are back
+	void notificationsLost(SpecificNotifyListener source); // Some notifications may have been missed (e.g. while reconnecting), known objects must be checked against the database
+	}
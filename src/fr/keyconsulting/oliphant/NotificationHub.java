@@ -0,0 +1,286 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// One specific listener per database for the whole JVM, shared by the session factories that use the same JDBC URL and user.
+// Notifications are received and parsed once, then handed to the handler of every attached session factory.
+// The listener is set up when the first session factory attaches, and torn down when the last one detaches.
+// Sessions of all the attached session factories drain under the lock of the hub, as they would under the drain lock of a
+// single one, so they wait for each other while the listener is polled and the batch is applied to every registry. A listener
+// that pushes its notifications as they arrive only has to be waited for, which sessions do together without the lock.
+// Versions are queried by each session factory for its own entities, on connections the hub keeps open for all of them.
+public class NotificationHub implements NotificationHandler
+	{
+	private static final Map<String,NotificationHub> hubs = new HashMap<String,NotificationHub>(); // Maps database keys to their hub
+	private static final int MAX_IDLE_CONNECTIONS = 4; // Kept open for version queries, more are opened while they are all lent
+
+	private final String key;
+	private final SpecificNotifyListener listener;
+	private final List<HubNotifyListener> views = new CopyOnWriteArrayList<HubNotifyListener>(); // Attached session factories
+	private final NotificationBuffer buffer = new NotificationBuffer();
+	private final Configuration settings; // Connection settings of the attached session factories
+	private final LinkedList<Connection> idleConnections = new LinkedList<Connection>(); // Open, and not lent to a session factory
+	private boolean closed = false; // Guarded by idleConnections
+
+	private static final Logger LOG = LoggerFactory.getLogger(NotificationHub.class);
+
+	private NotificationHub(String key, SpecificNotifyListener listener, Configuration settings)
+		{
+		this.key = key;
+		this.listener = listener;
+		this.settings = settings;
+		}
+
+	static synchronized NotificationHub attach(HubNotifyListener view, Configuration config, Class listenerClass)
+		{
+		String key = getKey(config);
+		NotificationHub hub = hubs.get(key);
+		if (hub == null)
+			{
+			SpecificNotifyListener listener;
+			try
+				{
+				listener = (SpecificNotifyListener) listenerClass.newInstance();
+				}
+			catch (InstantiationException e)
+				{
+				throw new HibernateException(e);
+				}
+			catch (IllegalAccessException e)
+				{
+				throw new HibernateException(e);
+				}
+			// The attached session factories already have the triggers in their DDL, the hub only needs the connection settings
+			Configuration settings = new Configuration();
+			settings.setProperties(config.getProperties());
+			listener.prepare(settings);
+			hub = new NotificationHub(key, listener, settings);
+			listener.setNotificationHandler(hub);
+			hubs.put(key, hub);
+			}
+		hub.views.add(view);
+		if (hub.views.size() == 1)
+			{
+			try
+				{
+				hub.listener.setUp();
+				}
+			catch (RuntimeException e)
+				{
+				hubs.remove(key);
+				throw e;
+				}
+			LOG.info("Listening to notifications from "+key);
+			}
+		return hub;
+		}
+
+	static synchronized void detach(HubNotifyListener view)
+		{
+		NotificationHub hub = view.getHub();
+		if ((hub == null) || !hub.views.remove(view) || !hub.views.isEmpty()) {return;}
+		hubs.remove(hub.key);
+		hub.listener.tearDown();
+		hub.closeConnections();
+		LOG.info("Stopped listening to notifications from "+hub.key);
+		}
+
+	public static synchronized int getHubCount()
+		{
+		return hubs.size();
+		}
+
+	public int getViewCount()
+		{
+		return views.size();
+		}
+
+	// Drains the listener and hands what it got to every session factory, the caller's included.
+	// Draining and handing out are done under the same lock, so that a session factory draining while another one does
+	// waits until the notifications it missed are applied.
+	void drain()
+		{
+		// What a pushing listener receives is handed out as it arrives, sessions only wait for it and can do so together
+		if (listener.pushesNotifications())
+			{
+			listener.drainUpdates(null);
+			return;
+			}
+		drainBuffer();
+		}
+
+	private synchronized void drainBuffer()
+		{
+		buffer.clear();
+		listener.drainUpdates(buffer);
+		if ((buffer.size() > 0) || (buffer.getSkipped() > 0)) {notificationsReceived(listener, buffer);}
+		}
+
+	String getWatermark()
+		{
+		return listener.getWatermark();
+		}
+
+	// Queries versions for a session factory on a connection of the hub, instead of one opened for each batch of a resync
+	Map<String,String> getCurrentVersions(SpecificNotifyListener querier, String entityName, Collection<String> ids)
+		{
+		Connection connection = borrowConnection();
+		boolean failed = true;
+		try
+			{
+			Map<String,String> versions = querier.getCurrentVersions(entityName, ids, connection);
+			failed = false;
+			return versions;
+			}
+		finally
+			{
+			if (failed) {closeQuietly(connection);} // may be broken
+			else {returnConnection(connection);}
+			}
+		}
+
+	public int getIdleConnectionCount()
+		{
+		synchronized (idleConnections)
+			{
+			return idleConnections.size();
+			}
+		}
+
+	private Connection borrowConnection()
+		{
+		synchronized (idleConnections)
+			{
+			if (!idleConnections.isEmpty()) {return idleConnections.removeFirst();}
+			}
+		try
+			{
+			return DriverManager.getConnection(settings.getProperty("hibernate.connection.url"), settings.getProperty("hibernate.connection.username"), settings.getProperty("hibernate.connection.password"));
+			}
+		catch (SQLException sqle)
+			{
+			throw new HibernateException("Could not connect to "+key, sqle);
+			}
+		}
+
+	private void returnConnection(Connection connection)
+		{
+		synchronized (idleConnections)
+			{
+			if (!closed && (idleConnections.size() < MAX_IDLE_CONNECTIONS))
+				{
+				idleConnections.addFirst(connection);
+				return;
+				}
+			}
+		closeQuietly(connection);
+		}
+
+	private void closeConnections()
+		{
+		synchronized (idleConnections)
+			{
+			closed = true;
+			while (!idleConnections.isEmpty()) {closeQuietly(idleConnections.removeFirst());}
+			}
+		}
+
+	private static void closeQuietly(Connection connection)
+		{
+		try
+			{
+			connection.close();
+			}
+		catch (SQLException e)
+			{
+			LOG.debug("Could not close a version query connection", e);
+			}
+		}
+
+	public void notificationsReceived(SpecificNotifyListener source, NotificationBuffer notifications)
+		{
+		for (int i=0; i<views.size(); i++)
+			{
+			try
+				{
+				views.get(i).notificationsReceived(notifications);
+				}
+			catch (RuntimeException e)
+				{
+				LOG.error("A session factory failed to apply notifications", e); // the others still get them
+				}
+			}
+		}
+
+	public void notificationsInterrupted(SpecificNotifyListener source)
+		{
+		for (int i=0; i<views.size(); i++)
+			{
+			try
+				{
+				views.get(i).notificationsInterrupted();
+				}
+			catch (RuntimeException e)
+				{
+				LOG.error("A session factory failed to handle the interruption of notifications", e);
+				}
+			}
+		}
+
+	public void notificationsLost(SpecificNotifyListener source)
+		{
+		for (int i=0; i<views.size(); i++)
+			{
+			try
+				{
+				views.get(i).notificationsLost();
+				}
+			catch (RuntimeException e)
+				{
+				LOG.error("Resync of a session factory failed", e); // do not keep the others from resynchronizing
+				}
+			}
+		}
+
+	private static String getKey(Configuration config)
+		{
+		String url = config.getProperty("hibernate.connection.url");
+		if (url == null) {throw new HibernateException("Oliphant needs hibernate.connection.url to share notifications between session factories");}
+		String user = config.getProperty("hibernate.connection.username");
+		return (user == null) ? url : user+"@"+url;
+		}
+	}
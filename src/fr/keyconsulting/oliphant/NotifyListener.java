@@ -22,39 +22,91 @@
 package fr.keyconsulting.oliphant;
 
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hibernate.HibernateException;
+import org.hibernate.Session;
 import org.hibernate.StaleObjectStateException;
 import org.hibernate.cache.CacheKey;
 import org.hibernate.cache.access.EntityRegionAccessStrategy;
 import org.hibernate.cache.entry.CacheEntry;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.Status;
 import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.event.AutoFlushEvent;
+import org.hibernate.event.AutoFlushEventListener;
+import org.hibernate.event.Destructible;
 import org.hibernate.event.EventSource;
 import org.hibernate.event.FlushEntityEvent;
 import org.hibernate.event.FlushEntityEventListener;
+import org.hibernate.event.FlushEvent;
+import org.hibernate.event.FlushEventListener;
+import org.hibernate.event.Initializable;
 import org.hibernate.event.PersistEvent;
 import org.hibernate.event.PersistEventListener;
 import org.hibernate.event.PostLoadEvent;
 import org.hibernate.event.PostLoadEventListener;
 import org.hibernate.event.PreUpdateEvent;
 import org.hibernate.event.PreUpdateEventListener;
+import org.hibernate.event.def.DefaultAutoFlushEventListener;
+import org.hibernate.event.def.DefaultFlushEventListener;
+import org.hibernate.mapping.Collection;
+import org.hibernate.mapping.PersistentClass;
 import org.hibernate.persister.entity.EntityPersister;
-import org.postgresql.util.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class NotifyListener implements PostLoadEventListener, PersistEventListener, FlushEntityEventListener, PreUpdateEventListener
+public class NotifyListener implements PostLoadEventListener, PersistEventListener, FlushEntityEventListener, PreUpdateEventListener, NotificationHandler, Initializable, Destructible
 	{
 	private static final long serialVersionUID = -8582214998956097719L;
-	private Map<String,String> versions = new HashMap<String,String>(); // Maps object UIDs to latest known versions
+	private VersionRegistry registry;
+	private HotSpotTracker changeTracker; // Most changed objects, may be null
+	private HotSpotTracker staleTracker; // Objects most often found stale, may be null
+	private Map<String,EntityInfo> entities = new ConcurrentHashMap<String,EntityInfo>(); // Maps entity names to their metadata
+	private volatile Map<String,List<CollectionInfo>> collections; // Maps the keys under which collection changes are notified to the roles they affect
 	private SessionFactoryImplementor sessionFactory;
 	private SpecificNotifyListener specificNotifyListener;
 	private boolean allowStaleLoad = true;
+	private boolean eagerStart = false;
+	private boolean replicaReads = false;
+	private SessionStates sessionStates = new SessionStates(); // Whether sessions read from a replica, once asked, and whether they were pinned to the primary
+	private boolean started = false;
+	private boolean stopped = false;
+	private RegistrySnapshot snapshot;
+	private long snapshotInterval;
+	private Timer snapshotTimer;
+	private Thread shutdownHook;
+	private SharedVersionTable sharedTable; // Versions shared with the other JVMs of the host, may be null
+	private long sharedInterval; // How often the writer of the shared table drains notifications, and readers check that it is still alive
+	private Timer sharedTimer;
+	private volatile boolean interrupted = false; // Notifications are not received, stale objects go undetected
+	private volatile boolean listening = false; // False until we are set up, and on JVMs reading the shared table
+	private TraceRecorder recorder; // Records notifications for offline replays, may be null
+	private boolean recordEvents = false; // Whether the recorder also gets the events checked against notifications
 	private Configuration config;
+	private ThreadLocal<WeakReference<PostLoadEvent>> lastDrainedLoad = new ThreadLocal<WeakReference<PostLoadEvent>>(); // Load batch for which we last drained notifications
+	private ThreadLocal<NotificationBuffer> drainBuffer = new ThreadLocal<NotificationBuffer>() // Reused by each thread to drain notifications
+		{
+		protected NotificationBuffer initialValue()
+			{
+			return new NotificationBuffer();
+			}
+		};
+	private final Object drainLock = new Object(); // Notifications are applied before another thread drains, so that it cannot miss those still being applied
+	private ThreadLocal<List<Object>> flushedUpdates = new ThreadLocal<List<Object>>(); // Objects scheduled for update by the checked flush in progress
+	private ThreadLocal<Boolean> refreshing = new ThreadLocal<Boolean>(); // Set while we refresh a stale object, to skip checks on the reloaded state
 	
 	private static final Logger LOG = LoggerFactory.getLogger(NotifyListener.class);
 	
@@ -62,31 +114,405 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 		{
 		LOG.debug("Hibernate: Post load event");
 		processLoadEvent(event, true);
-		if (!allowStaleLoad)
+		boolean fromReplica = replicaReads && isReplicaSession(event.getSession());
+		if (!allowStaleLoad || fromReplica)
+			{
+			// Hibernate fires the same event object for all the entities of a query result or batch fetch,
+			// so notifications only need to be drained once for the whole batch
+			WeakReference<PostLoadEvent> lastDrained = lastDrainedLoad.get();
+			if ((lastDrained == null) || (lastDrained.get() != event))
+				{
+				updateStaleUidsAndVersions();
+				lastDrainedLoad.set(new WeakReference<PostLoadEvent>(event));
+				}
+			if (fromReplica) {checkReplicaLoad(event.getEntity(), event.getSession());}
+			else {checkObject(event.getEntity(), event.getSession(), true);}
+			}
+		}
+
+	// Sessions reading from a replica are expected to use a read-only connection, which is only asked on the first load of a session
+	private boolean isReplicaSession(EventSource session)
+		{
+		SessionStates.State state = sessionStates.get(session);
+		if (state == null)
+			{
+			try
+				{
+				state = sessionStates.putIfAbsent(session, new SessionStates.State(session.connection().isReadOnly()));
+				}
+			catch (SQLException e)
+				{
+				throw new HibernateException(e);
+				}
+			}
+		return state.replica;
+		}
+
+	// A replica lagging behind the notifications we received from the primary returns old versions.
+	// Refreshing would read from the same replica, so the object is rejected and the session pinned to the primary.
+	private void checkReplicaLoad(Object object, EventSource session) throws StaleObjectStateException
+		{
+		String entityName = session.getEntityName(object);
+		if (!getEntityInfo(entityName).isMonitored()) {return;}
+		if (isStaleInSession(object, session))
 			{
-			updateStaleUidsAndVersions();
-			checkObject(event.getEntity(), event.getSession());
+			Serializable identifier = session.getIdentifier(object);
+			LOG.debug("* Object "+identifier+" loaded from a lagging replica");
+			recordStale(object, session);
+			sessionStates.get(session).pinned = true; // asked by isReplicaSession before the load was checked
+			// The replica state may already have been put in the L2 cache
+			if (isKnownToBeStaleInL2(object, session)) {evictFromL2(object, session);}
+			throw new StaleObjectStateException(entityName, identifier);
 			}
 		}
+
+	// True if the session loaded an object from a replica that had not caught up with the primary yet.
+	// Work done in the session should be retried in a session bound to the primary.
+	public boolean isPinnedToPrimary(Session session)
+		{
+		SessionStates.State state = sessionStates.get(session);
+		return (state != null) && state.pinned;
+		}
 	
+	// Called by Hibernate when building the session factory, once for each kind of event we listen to
+	public void initialize(Configuration cfg)
+		{
+		if (eagerStart || (snapshot != null) || (sharedTable != null)) {start();}
+		}
+
+	// Called by Hibernate when closing the session factory, once for each kind of event we listen to
+	public synchronized void cleanup()
+		{
+		if (!started || stopped) {return;}
+		stopped = true;
+		if (sharedTimer != null) {sharedTimer.cancel();}
+		if (!listening)
+			{
+			// Reading the shared table, or listen() failed
+			if (sharedTable != null) {sharedTable.close();}
+			if (recorder != null) {recorder.close();}
+			return;
+			}
+		if (snapshot != null)
+			{
+			snapshotTimer.cancel();
+			try
+				{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				}
+			catch (IllegalStateException e)
+				{
+				// already shutting down, the hook is running
+				}
+			writeSnapshot();
+			}
+		specificNotifyListener.tearDown();
+		if (sharedTable != null) {sharedTable.close();}
+		if (recorder != null) {recorder.close();}
+		}
+
+	private synchronized void start()
+		{
+		if (started) {return;}
+		started = true;
+		if (sharedTable != null)
+			{
+			sharedTable.open();
+			sharedTimer = new Timer("oliphant-shared", true);
+			sharedTimer.schedule(new TimerTask()
+				{
+				public void run()
+					{
+					try
+						{
+						pumpSharedTable();
+						}
+					catch (RuntimeException e)
+						{
+						LOG.warn("Could not update the shared registry", e);
+						}
+					}
+				}, sharedInterval, sharedInterval);
+			if (!sharedTable.tryBecomeWriter() && !sharedTable.isDegraded())
+				{
+				registry.setSharedTable(sharedTable, false);
+				LOG.info("Reading versions from the shared registry, another JVM of this host listens to notifications");
+				return;
+				}
+			if (!sharedTable.isWriter()) {stopSharing();}
+			}
+		listen();
+		}
+
+	// The writer could not store every version, so we listen to notifications ourselves instead of reading the table
+	private void stopSharing()
+		{
+		LOG.warn("The shared registry cannot hold every version, listening to notifications instead");
+		sharedTimer.cancel();
+		sharedTimer = null;
+		registry.setSharedTable(null, false);
+		sharedTable.close();
+		sharedTable = null;
+		}
+
+	// The writer drains notifications into the shared table even when its own sessions are idle.
+	// Readers take over if the writer went away, since the operating system then released its lock.
+	private synchronized void pumpSharedTable()
+		{
+		if (stopped) {return;}
+		if (listening) {updateStaleUidsAndVersions();}
+		else if (sharedTable.tryBecomeWriter())
+			{
+			LOG.info("Taking over the shared registry");
+			listen();
+			}
+		else if (sharedTable.isDegraded())
+			{
+			stopSharing();
+			listen();
+			// What we loaded while reading the table may have changed in versions it could not hold
+			notificationsLost(specificNotifyListener);
+			}
+		}
+
+	private void listen()
+		{
+		if (recorder != null) {recorder.open();}
+		specificNotifyListener.setUp();
+		listening = true;
+		// A schema created by hbm2ddl starts empty, and its tables do not exist yet when the session factory starts us
+		String hbm2ddl = config.getProperty("hibernate.hbm2ddl.auto");
+		boolean schemaCreated = "create".equals(hbm2ddl) || "create-drop".equals(hbm2ddl);
+		if ((sharedTable != null) && schemaCreated) {registry.setSharedTable(sharedTable, true);}
+		else if (sharedTable != null)
+			{
+			// Start from what the previous writer left, and catch up with the changes it did not publish
+			List<String> uids = new ArrayList<String>();
+			List<String> versions = new ArrayList<String>();
+			sharedTable.copyEntries(uids, versions);
+			// Readers left a degraded table and resynchronized what they loaded, new ones only need the versions published from now on
+			if (sharedTable.isDegraded()) {sharedTable.reset();}
+			for (int i=0; i<uids.size(); i++)
+				{
+				registry.restore(uids.get(i), versions.get(i), true);
+				}
+			registry.setSharedTable(sharedTable, true);
+			if (!uids.isEmpty()) {notificationsLost(specificNotifyListener);}
+			}
+		if (snapshot != null)
+			{
+			// We are already listening, so the snapshot only misses changes made between its watermark and now
+			String watermark = schemaCreated ? null : snapshot.read(registry);
+			if (watermark != null)
+				{
+				LOG.info("Loaded "+registry.size()+" objects from the registry snapshot");
+				if (!watermark.equals(specificNotifyListener.getWatermark())) {notificationsLost(specificNotifyListener);}
+				}
+			snapshotTimer = new Timer("oliphant-snapshot", true);
+			snapshotTimer.schedule(new TimerTask()
+				{
+				public void run()
+					{
+					try
+						{
+						writeSnapshot();
+						}
+					catch (RuntimeException e)
+						{
+						LOG.warn("Could not write the registry snapshot", e);
+						}
+					}
+				}, snapshotInterval, snapshotInterval);
+			shutdownHook = new Thread("oliphant-snapshot-shutdown")
+				{
+				public void run()
+					{
+					writeSnapshot();
+					}
+				};
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+			}
+		}
+
+	private void writeSnapshot()
+		{
+		// Take the watermark first, then drain, so that the copy holds every change made before the watermark
+		String watermark = specificNotifyListener.getWatermark();
+		updateStaleUidsAndVersions();
+		snapshot.write(registry, watermark);
+		LOG.debug("Wrote "+registry.size()+" objects to the registry snapshot");
+		}
+
 	public void onPersist(PersistEvent event, Map map) throws StaleObjectStateException
 		{
 		LOG.debug("Hibernate:  Persist event");
 		updateStaleUidsAndVersions();
-		checkObject(event.getObject(), event.getSession());
+		recordEvent(TraceRecorder.PERSIST, event.getObject(), event.getSession());
+		checkObject(event.getObject(), event.getSession(), true);
 		}
 
 	public void onPersist(PersistEvent event) throws StaleObjectStateException
 		{
 		LOG.debug("Hibernate:  Persist event");
 		updateStaleUidsAndVersions();
-		checkObject(event.getObject(), event.getSession());
+		recordEvent(TraceRecorder.PERSIST, event.getObject(), event.getSession());
+		checkObject(event.getObject(), event.getSession(), true);
 		}
 	
+	// Notifications miss the changes made before we started listening, while we were reconnecting, or by writers without triggers.
+	// Such a stale object would only fail with its UPDATE, after the rest of the flush was sent. Instead, once Hibernate has
+	// scheduled its updates, the current versions of the objects it is about to update are queried with one query per table on the
+	// connection of the session, before any statement is sent. This covers the version increments caused by collection changes only.
+	// Dirty objects are never refreshed, so the first stale one found is rejected. Newer versions found are kept in the registry.
+	private void checkBeforeFlush(EventSource session) throws StaleObjectStateException
+		{
+		List<Object> updated = flushedUpdates.get();
+		if ((updated == null) || updated.isEmpty() || (refreshing.get() != null)) {return;}
+		Map<String,String> entityNames = new HashMap<String,String>(); // Maps tables to the first entity found for them
+		Map<String,Map<String,Object>> objects = new HashMap<String,Map<String,Object>>(); // Maps tables to the updated objects of the session by id
+		for (Iterator<Object> i = updated.iterator(); i.hasNext();)
+			{
+			Object object = i.next();
+			EntityEntry entry = session.getPersistenceContext().getEntry(object);
+			EntityInfo info = getEntityInfo(entry.getPersister().getEntityName());
+			if (!info.isMonitored() || !info.isVersioned()) {continue;}
+			Map<String,Object> tableObjects = objects.get(info.getTableName());
+			if (tableObjects == null)
+				{
+				tableObjects = new HashMap<String,Object>();
+				objects.put(info.getTableName(), tableObjects);
+				entityNames.put(info.getTableName(), entry.getPersister().getEntityName());
+				}
+			tableObjects.put(entry.getId().toString(), object);
+			}
+		if (objects.isEmpty()) {return;}
+		if (sessionFactory == null)
+			{
+			// our first event, initialize the listener
+			sessionFactory = (SessionFactoryImplementor) session.getSessionFactory();
+			start();
+			}
+
+		for (Iterator<Map.Entry<String,Map<String,Object>>> i = objects.entrySet().iterator(); i.hasNext();)
+			{
+			Map.Entry<String,Map<String,Object>> tableEntry = i.next();
+			String tableName = tableEntry.getKey();
+			Map<String,Object> tableObjects = tableEntry.getValue();
+			Map<String,String> currentVersions = specificNotifyListener.getCurrentVersions(entityNames.get(tableName), tableObjects.keySet(), session.connection());
+			for (Iterator<Map.Entry<String,Object>> j = tableObjects.entrySet().iterator(); j.hasNext();)
+				{
+				Map.Entry<String,Object> objectEntry = j.next();
+				String id = objectEntry.getKey();
+				Object object = objectEntry.getValue();
+				EntityEntry entry = session.getPersistenceContext().getEntry(object);
+				EntityInfo info = getEntityInfo(entry.getPersister().getEntityName());
+				// As loaded, the object itself may already hold the version its update will write
+				String version = (entry.getLoadedState() == null) ? info.getVersion(entry.getPersister(), object, session.getEntityMode()) : info.getVersion(entry.getPersister(), entry.getLoadedState());
+				String currentVersion = currentVersions.get(id);
+				if (currentVersion == null) {currentVersion = VersionRegistry.DELETED;}
+				if ((version == null) || !VersionRegistry.isNewer(currentVersion, version)) {continue;}
+				registry.update(VersionRegistry.getUid(tableName, id), currentVersion);
+				LOG.debug("Object "+id+" found stale before flush");
+				recordStale(object, session);
+				evictFromL2(object, session);
+				throw new StaleObjectStateException(entry.getPersister().getEntityName(), entry.getId());
+				}
+			}
+		}
+
+	// Takes Hibernate's place for explicit flushes when oliphant.flush_check.enabled is set
+	private static class CheckingFlushEventListener extends DefaultFlushEventListener
+		{
+		private static final long serialVersionUID = 2917364185095827713L;
+		private NotifyListener listener;
+
+		public CheckingFlushEventListener(NotifyListener listener)
+			{
+			this.listener = listener;
+			}
+
+		public void onFlush(FlushEvent event) throws HibernateException
+			{
+			listener.flushedUpdates.set(new ArrayList<Object>());
+			try
+				{
+				super.onFlush(event);
+				}
+			finally
+				{
+				listener.flushedUpdates.remove();
+				}
+			}
+
+		// Called once the updates are scheduled, before any of them is executed
+		protected void performExecutions(EventSource session) throws HibernateException
+			{
+			listener.checkBeforeFlush(session);
+			super.performExecutions(session);
+			}
+		}
+
+	// Takes Hibernate's place for the flushes made before queries when oliphant.flush_check.enabled is set
+	private static class CheckingAutoFlushEventListener extends DefaultAutoFlushEventListener
+		{
+		private static final long serialVersionUID = -6250177386532184954L;
+		private NotifyListener listener;
+
+		public CheckingAutoFlushEventListener(NotifyListener listener)
+			{
+			this.listener = listener;
+			}
+
+		public void onAutoFlush(AutoFlushEvent event) throws HibernateException
+			{
+			listener.flushedUpdates.set(new ArrayList<Object>());
+			try
+				{
+				super.onAutoFlush(event);
+				}
+			finally
+				{
+				listener.flushedUpdates.remove();
+				}
+			}
+
+		// Only called if the query needs the flush, once the updates are scheduled
+		protected void performExecutions(EventSource session) throws HibernateException
+			{
+			listener.checkBeforeFlush(session);
+			super.performExecutions(session);
+			}
+		}
+
+	// Runs after Hibernate's own flush entity listener, to collect the objects it scheduled for update during a checked flush
+	private static class UpdateCollector implements FlushEntityEventListener
+		{
+		private static final long serialVersionUID = 4475027380329513496L;
+		private NotifyListener listener;
+
+		public UpdateCollector(NotifyListener listener)
+			{
+			this.listener = listener;
+			}
+
+		public void onFlushEntity(FlushEntityEvent event)
+			{
+			List<Object> updated = listener.flushedUpdates.get();
+			if (updated == null) {return;}
+			EntityEntry entry = event.getEntityEntry();
+			if ((entry.getStatus() != Status.MANAGED) || !entry.isExistsInDatabase()) {return;}
+			// Same test as Hibernate's, dirty collections included since they increment the version
+			int[] dirtyProperties = event.getDirtyProperties();
+			if (event.isDirtyCheckPossible() && ((dirtyProperties == null) || (dirtyProperties.length == 0)) && !event.hasDirtyCollection()) {return;}
+			updated.add(event.getEntity());
+			}
+		}
+
 	public void onFlushEntity(FlushEntityEvent event) throws StaleObjectStateException
 		{
 		LOG.debug("Hibernate:  Flush entity event");
 		updateStaleUidsAndVersions();
+		recordEvent(TraceRecorder.FLUSH, event.getEntity(), event.getSession());
 		checkObject(event.getEntity(), event.getSession());
 		}
 
@@ -94,8 +520,9 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 		{
 		LOG.debug("Hibernate:  Pre-update event");
 		updateStaleUidsAndVersions();
+		recordEvent(TraceRecorder.UPDATE, event.getEntity(), event.getSession());
 		checkObject(event.getEntity(), event.getSession());
-		return true;
+		return false; // true would veto the update
 		}
 	
 	public Serializable processLoadEvent(PostLoadEvent event, boolean throwStaleException) throws StaleObjectStateException
@@ -104,48 +531,123 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 		{
 		// our first event, initialize the listener
 		sessionFactory = (SessionFactoryImplementor) event.getSession().getSessionFactory();
-		specificNotifyListener.setUp();
+		start();
 		}
 	Object object = event.getEntity();
 	EventSource session = event.getSession();
 	EntityPersister persister = event.getPersister();
-	String uid = getUid(object, session);
-	if (persister.isVersioned())
+	EntityInfo info = getEntityInfo(persister.getEntityName());
+	if (info.isMonitored() && info.isVersioned())
 		{
-		if (!versions.containsKey(uid))
-			{
-			// We have not yet received notifications for this object
-			versions.put(uid, Base64.encodeBytes(persister.getVersion(object, session.getEntityMode()).toString().getBytes()));
-			}
+		String tableName = info.getTableName();
+		String id = session.getIdentifier(object).toString();
+		String version = info.getVersion(persister, object, session.getEntityMode());
+		if (version == null) {return true;}
+		if (recordEvents && (recorder != null)) {recorder.recordEvent(TraceRecorder.LOAD, tableName, id, version);}
+		// Remembered even without notifications, so that a resync after lost notifications checks the objects in use.
+		// Only kept if newer than what notifications told us.
+		registry.seed(tableName, id, version);
 		}
 	return true;
 	}
 	
 	public Serializable checkObject(Object object, EventSource session) throws StaleObjectStateException
 		{
+		return checkObject(object, session, false);
+		}
+
+	// Objects that may be refreshed are reloaded in place if the stale policy allows it and they have no pending changes.
+	// Otherwise, unchanged objects are left as is since they will not be written back.
+	public Serializable checkObject(Object object, EventSource session, boolean mayRefresh) throws StaleObjectStateException
+		{
+		if (refreshing.get() != null) {return null;}
+		if (!getEntityInfo(session.getEntityName(object)).isMonitored()) {return null;}
 		Serializable identifier = session.getIdentifier(object);
-		LOG.debug("* Checking object "+identifier+" : ");
-		if (isKnownToBeStaleInSession(object, session))
+		if (LOG.isDebugEnabled()) {LOG.debug("* Checking object "+identifier+" : ");}
+		if (isStaleInSession(object, session))
 			{
 			LOG.debug("Object is stale in session");
+			recordStale(object, session);
 			String entityName = session.getEntityName(object);
 			if (isKnownToBeStaleInL2(object, session))
 				{
 				LOG.debug(" and in L2 cache");
 				evictFromL2(object, session);
 				}
+			if (getEntityInfo(entityName).isRefreshedWhenStale() && !isDirty(object, session))
+				{
+				if (mayRefresh)
+					{
+					refreshing.set(Boolean.TRUE);
+					try
+						{
+						session.refresh(object);
+						}
+					finally
+						{
+						refreshing.remove();
+						}
+					LOG.debug("* Object "+identifier+" refreshed");
+					}
+				return null;
+				}
 			throw new StaleObjectStateException(entityName, identifier);
 			}
 		LOG.debug("Object is not verifiably stale");
 		return null;
 		}
 
+	// Recorded once notifications are drained, so that a replay checks the event against the same ones
+	private void recordEvent(byte type, Object object, EventSource session)
+		{
+		if (!recordEvents || (recorder == null)) {return;}
+		EntityEntry entry = session.getPersistenceContext().getEntry(object);
+		if (entry == null) {return;} // new object
+		EntityInfo info = getEntityInfo(entry.getPersister().getEntityName());
+		if (!info.isMonitored() || !info.isVersioned()) {return;}
+		String version = info.getVersion(entry.getPersister(), object, session.getEntityMode());
+		if (version == null) {return;}
+		recorder.recordEvent(type, info.getTableName(), entry.getId().toString(), version);
+		}
+
+	// Replays a recorded event, doing what the event listeners do with an object of that version, minus the refresh and L2 eviction.
+	// Returns true if the object is stale.
+	public boolean replayEvent(byte type, String tableName, String id, String version)
+		{
+		if (type == TraceRecorder.LOAD)
+			{
+			registry.seed(tableName, id, version);
+			if (allowStaleLoad) {return false;}
+			}
+		updateStaleUidsAndVersions();
+		if (!VersionRegistry.isNewer(registry.getLatestVersion(tableName, id), version)) {return false;}
+		if (staleTracker != null) {staleTracker.record(VersionRegistry.getUid(tableName, id));}
+		return true;
+		}
+
+	private void recordStale(Object object, EventSource session)
+		{
+		if (staleTracker == null) {return;}
+		String tableName = getEntityInfo(session.getEntityName(object)).getTableName();
+		staleTracker.record(VersionRegistry.getUid(tableName, session.getIdentifier(object).toString()));
+		}
+
+	private boolean isDirty(Object object, EventSource session)
+		{
+		EntityEntry entry = session.getPersistenceContext().getEntry(object);
+		if ((entry == null) || (entry.getLoadedState() == null)) {return true;}
+		EntityPersister persister = entry.getPersister();
+		Object[] values = persister.getPropertyValues(object, session.getEntityMode());
+		return persister.findDirty(values, entry.getLoadedState(), object, session) != null;
+		}
+
 	public boolean isKnownToBeStaleInL2(Object object, EventSource session)
 		{
 		final EntityPersister persister = sessionFactory.getEntityPersister(session.getEntityName(object));
-		String uid = getUid(object, session);
-		if (!versions.containsKey(uid)) {return false;}
-		if (persister.isVersioned())
+		EntityInfo info = getEntityInfo(session.getEntityName(object));
+		String latestVersion = registry.getLatestVersion(info.getTableName(), session.getIdentifier(object).toString());
+		if (latestVersion == null) {return false;}
+		if (info.isVersioned())
 			{
 			if (persister.hasCache() && session.getCacheMode().isGetEnabled())
 				{
@@ -160,7 +662,7 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 						);
 				CacheEntry cachedObject = (CacheEntry) cacheAccessStrategy.get(ck, Long.MAX_VALUE);
 				if (cachedObject==null) {return false;}
-				if (Base64.encodeBytes(cachedObject.getDisassembledState()[persister.getVersionProperty()].toString().getBytes()) != versions.get(uid)) {return true;}
+				if (VersionRegistry.isNewer(latestVersion, info.getVersion(persister, cachedObject.getDisassembledState()))) {return true;}
 				}
 			}
 		return false;
@@ -169,7 +671,7 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 	public void evictFromL2(Object object, EventSource session)
 	{
 	final EntityPersister persister = sessionFactory.getEntityPersister(session.getEntityName(object));
-	if (persister.isVersioned())
+	if (getEntityInfo(persister.getEntityName()).isVersioned())
 		{
 		if (persister.hasCache() && session.getCacheMode().isGetEnabled())
 			{
@@ -191,41 +693,241 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 
 	public boolean isKnownToBeStaleInSession(Object object, EventSource session)
 		{
-		String uid = getUid(object, session);
 		updateStaleUidsAndVersions();
-		if (versions.containsKey(uid))
+		return isStaleInSession(object, session);
+		}
+
+	// Same as isKnownToBeStaleInSession, for callers that already drained notifications
+	private boolean isStaleInSession(Object object, EventSource session)
+		{
+		String entityName = session.getEntityName(object);
+		EntityInfo info = getEntityInfo(entityName);
+		// Most objects never had a notification, the filter lets us skip the UID and the registry lookup
+		String latestVersion = registry.getLatestVersion(info.getTableName(), session.getIdentifier(object).toString());
+		if (latestVersion != null)
 			{
-			EntityPersister persister = session.getEntityPersister(session.getEntityName(object), object);
-			String version = Base64.encodeBytes(persister.getVersion(object, session.getEntityMode()).toString().getBytes());
-			if (!version.equals(versions.get(uid))) {return true;}
+			EntityPersister persister = session.getEntityPersister(entityName, object);
+			String version = info.getVersion(persister, object, session.getEntityMode());
+			if ((version != null) && VersionRegistry.isNewer(latestVersion, version)) {return true;}
 			}
 		return false;
 		}
 
-	private String getUid(Object object, EventSource session)
+	// Check the objects we know of, in the registry and in the L2 cache, against their current versions in the database
+	public void notificationsLost(SpecificNotifyListener source)
 		{
-		String entityName = session.getEntityName(object);
-		String tableName = config.getClassMapping(entityName).getTable().getName().toLowerCase();
-		String id = Base64.encodeBytes(session.getIdentifier(object).toString().getBytes());
+		LOG.warn("Change notifications may have been lost, resynchronizing known objects");
+		// Collections have no version to compare, drop them all
+		if (sessionFactory != null)
+			{
+			for (Iterator<List<CollectionInfo>> i = getCollectionInfos().values().iterator(); i.hasNext();)
+				{
+				List<CollectionInfo> infos = i.next();
+				for (int j=0; j<infos.size(); j++) {sessionFactory.evictCollection(infos.get(j).getRole());}
+				}
+			}
+		Map<String,List<String>> knownIds = registry.getIdsByTable();
+		Set<String> resyncedTables = new HashSet<String>();
+		for(Iterator i = config.getClassMappings(); i.hasNext();)
+			{
+			PersistentClass c = (PersistentClass) i.next();
+			EntityInfo info = getEntityInfo(c.getEntityName());
+			if (!info.isVersioned() || !info.isMonitored() || !resyncedTables.add(info.getTableName())) {continue;}
+
+			Set<String> ids = new HashSet<String>();
+			List<String> registryIds = knownIds.get(info.getTableName());
+			if (registryIds != null) {ids.addAll(registryIds);}
+			Map<String,CacheKey> cacheKeys = getCacheKeys(c.getEntityName());
+			ids.addAll(cacheKeys.keySet());
+			if (ids.isEmpty()) {continue;}
+
+			Map<String,String> currentVersions = source.getCurrentVersions(c.getEntityName(), ids);
+			for (Iterator<String> j = ids.iterator(); j.hasNext();)
+				{
+				String id = j.next();
+				String version = currentVersions.get(id);
+				if (version == null) {version = VersionRegistry.DELETED;}
+				String uid = VersionRegistry.getUid(info.getTableName(), id);
+				String knownVersion = registry.get(uid);
+				if (knownVersion != null)
+					{
+					// A row that exists again after we saw it deleted was inserted back
+					if (VersionRegistry.DELETED.equals(version)) {registry.update(uid, version, Notification.Operation.DELETE);}
+					else if (VersionRegistry.DELETED.equals(knownVersion)) {registry.update(uid, version, Notification.Operation.INSERT);}
+					else if (VersionRegistry.compareVersions(version, knownVersion) != 0) {registry.update(uid, version, Notification.Operation.UPDATE);}
+					}
+				CacheKey ck = cacheKeys.get(id);
+				if (ck != null)
+					{
+					EntityPersister persister = sessionFactory.getEntityPersister(c.getEntityName());
+					EntityRegionAccessStrategy cacheAccessStrategy = persister.getCacheAccessStrategy();
+					CacheEntry cachedObject = (CacheEntry) cacheAccessStrategy.get(ck, Long.MAX_VALUE);
+					if ((cachedObject != null) && (VersionRegistry.DELETED.equals(version) || (VersionRegistry.compareVersions(version, String.valueOf(info.getVersion(persister, cachedObject.getDisassembledState()))) != 0)))
+						{
+						cacheAccessStrategy.evict(ck);
+						LOG.debug("* Object "+id+" evicted from L2 after resync");
+						}
+					}
+				}
+			}
+		interrupted = false;
+		}
 
-		return tableName+"#"+id;
+	public void notificationsInterrupted(SpecificNotifyListener source)
+		{
+		LOG.warn("Change notifications interrupted, stale objects go undetected until they are back");
+		interrupted = true;
+		}
+
+	// True while notifications are not received, from the loss of the connection until the resync that follows its return
+	public boolean isInterrupted()
+		{
+		return interrupted;
+		}
+
+	// Maps the ids of the cached objects of an entity to their L2 cache keys
+	private Map<String,CacheKey> getCacheKeys(String entityName)
+		{
+		Map<String,CacheKey> cacheKeys = new HashMap<String,CacheKey>();
+		if (sessionFactory == null) {return cacheKeys;} // no session yet, nothing cached
+		EntityPersister persister = sessionFactory.getEntityPersister(entityName);
+		if (!getEntityInfo(entityName).isVersioned() || !persister.hasCache() || (persister.getCacheAccessStrategy() == null)) {return cacheKeys;}
+		for (Iterator i = persister.getCacheAccessStrategy().getRegion().toMap().keySet().iterator(); i.hasNext();)
+			{
+			Object key = i.next();
+			if ((key instanceof CacheKey) && ((CacheKey) key).getEntityOrRoleName().equals(persister.getRootEntityName()))
+				{
+				cacheKeys.put(((CacheKey) key).getKey().toString(), (CacheKey) key);
+				}
+			}
+		return cacheKeys;
+		}
+
+	public VersionRegistry getRegistry()
+		{
+		return registry;
+		}
+
+	public HotSpotTracker getChangeTracker()
+		{
+		return changeTracker;
+		}
+
+	public HotSpotTracker getStaleTracker()
+		{
+		return staleTracker;
+		}
+
+	public SpecificNotifyListener getSpecificNotifyListener()
+		{
+		return specificNotifyListener;
+		}
+
+	private void evictCollections(String key, String ownerId)
+		{
+		if (sessionFactory == null) {return;} // no session yet, nothing cached
+		List<CollectionInfo> infos = getCollectionInfos().get(key);
+		if (infos == null) {return;}
+		for (int i=0; i<infos.size(); i++)
+			{
+			sessionFactory.evictCollection(infos.get(i).getRole(), infos.get(i).getOwnerId(ownerId));
+			if (LOG.isDebugEnabled()) {LOG.debug("* Collection "+infos.get(i).getRole()+" of "+ownerId+" evicted from L2");}
+			}
+		}
+
+	// Collection mappings are only complete once the session factory is built.
+	// Built once and never changed, so that draining threads read it without taking our lock.
+	private Map<String,List<CollectionInfo>> getCollectionInfos()
+		{
+		Map<String,List<CollectionInfo>> infos = collections;
+		if (infos != null) {return infos;}
+		synchronized (this)
+			{
+			if (collections != null) {return collections;}
+			infos = new HashMap<String,List<CollectionInfo>>();
+			for (Iterator i = config.getCollectionMappings(); i.hasNext();)
+				{
+				Collection collection = (Collection) i.next();
+				if (!CollectionInfo.isTracked(config, collection)) {continue;}
+				CollectionInfo info = new CollectionInfo(collection);
+				List<CollectionInfo> roles = infos.get(info.getKey());
+				if (roles == null)
+					{
+					roles = new ArrayList<CollectionInfo>();
+					infos.put(info.getKey(), roles);
+					}
+				roles.add(info);
+				}
+			collections = infos;
+			return infos;
+			}
+		}
+
+	private EntityInfo getEntityInfo(String entityName)
+		{
+		EntityInfo info = entities.get(entityName);
+		if (info == null)
+			{
+			info = new EntityInfo(config, entityName);
+			entities.put(entityName, info);
+			}
+		return info;
 		}
 
 	private void updateStaleUidsAndVersions()
 		{
-		List<Notification> updates = specificNotifyListener.getLatestUpdates();
-		for (int i=0; i<updates.size(); i++)
+		if (!listening) {return;} // nothing to drain, or another JVM does it for us
+		if (specificNotifyListener.pushesNotifications())
+			{
+			// Applied by notificationsReceived as they arrive, we only wait for those sent before now
+			specificNotifyListener.drainUpdates(null);
+			return;
+			}
+		NotificationBuffer buffer = drainBuffer.get();
+		buffer.clear();
+		synchronized (drainLock)
+			{
+			specificNotifyListener.drainUpdates(buffer);
+			applyNotifications(buffer);
+			}
+		if (buffer.getSkipped() > 0) {notificationsLost(specificNotifyListener);}
+		}
+
+	// Applies the pending notifications to the registry, without waiting for a session to check an object
+	public void drainNotifications()
+		{
+		updateStaleUidsAndVersions();
+		}
+
+	// Called by the consumer threads of specific listeners that push notifications, each on its own share of the changes
+	public void notificationsReceived(SpecificNotifyListener source, NotificationBuffer buffer)
+		{
+		applyNotifications(buffer);
+		if (buffer.getSkipped() > 0) {notificationsLost(source);}
+		}
+
+	private void applyNotifications(NotificationBuffer buffer)
+		{
+		if (recorder != null) {recorder.recordNotifications(buffer);}
+		for (int i=0; i<buffer.size(); i++)
 			{
-			Notification notif = updates.get(i);
-			if (notif.getVersion() != null) {versions.put(notif.getUid(), notif.getVersion());}
+			if (buffer.getOperation(i) == Notification.Operation.COLLECTION)
+				{
+				evictCollections(buffer.getTableName(i), buffer.getId(i));
+				continue; // collection keys are not objects, keep them out of the registry and the hot spots
+				}
+			String uid = buffer.getUid(i);
+			registry.update(uid, buffer.getVersion(i), buffer.getOperation(i));
+			if (changeTracker != null) {changeTracker.record(uid);}
 			}
 		}
 	
-	public static void attachListener(Configuration config)
+	public static NotifyListener attachListener(Configuration config)
 		{
 		NotifyListener listener = new NotifyListener();
 
 		listener.config = config;
+		listener.registry = new VersionRegistry(getIntProperty(config, "oliphant.registry.max_entries", 0), getIntProperty(config, "oliphant.registry.max_loaded_entries", 100000), createFilter(config), getIntProperty(config, "oliphant.registry.stripes", 16));
 
 		PostLoadEventListener[] originalPostLoadListeners = config.getEventListeners().getPostLoadEventListeners();
 		int originalPostLoadListenersSize = java.lang.reflect.Array.getLength(originalPostLoadListeners);
@@ -248,6 +950,31 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 		System.arraycopy(originalFlushEntityEventListeners,0,flushEntityEventListeners,1,originalFlushEntityEventListenersSize);
 		config.getEventListeners().setFlushEntityEventListeners(flushEntityEventListeners);
 		
+		String flushCheckString = config.getProperty("oliphant.flush_check.enabled");
+		if ((flushCheckString!=null) && (flushCheckString.equals("true")))
+			{
+			// Hibernate's own flush listeners are replaced, others are left as is
+			FlushEventListener[] flushEventListeners = config.getEventListeners().getFlushEventListeners();
+			for (int i=0; i<flushEventListeners.length; i++)
+				{
+				if (flushEventListeners[i].getClass() == DefaultFlushEventListener.class) {flushEventListeners[i] = new CheckingFlushEventListener(listener);}
+				}
+			config.getEventListeners().setFlushEventListeners(flushEventListeners);
+			AutoFlushEventListener[] autoFlushEventListeners = config.getEventListeners().getAutoFlushEventListeners();
+			for (int i=0; i<autoFlushEventListeners.length; i++)
+				{
+				if (autoFlushEventListeners[i].getClass() == DefaultAutoFlushEventListener.class) {autoFlushEventListeners[i] = new CheckingAutoFlushEventListener(listener);}
+				}
+			config.getEventListeners().setAutoFlushEventListeners(autoFlushEventListeners);
+
+			originalFlushEntityEventListeners = config.getEventListeners().getFlushEntityEventListeners();
+			originalFlushEntityEventListenersSize = java.lang.reflect.Array.getLength(originalFlushEntityEventListeners);
+			flushEntityEventListeners = new FlushEntityEventListener[originalFlushEntityEventListenersSize+1];
+			System.arraycopy(originalFlushEntityEventListeners,0,flushEntityEventListeners,0,originalFlushEntityEventListenersSize);
+			flushEntityEventListeners[originalFlushEntityEventListenersSize] = new UpdateCollector(listener);
+			config.getEventListeners().setFlushEntityEventListeners(flushEntityEventListeners);
+			}
+
 		PreUpdateEventListener[] originalPreUpdateEventListeners = config.getEventListeners().getPreUpdateEventListeners();
 		int originalPreUpdateEventListenersSize = java.lang.reflect.Array.getLength(originalPreUpdateEventListeners);
 		PreUpdateEventListener[] preUpdateEventListeners = new PreUpdateEventListener[originalPreUpdateEventListenersSize+1];
@@ -258,7 +985,10 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 			{
 			Class specListClass = Class.forName(config.getProperty("oliphant.specific_listener"));
 			listener.specificNotifyListener = (SpecificNotifyListener) specListClass.newInstance();
+			String hubString = config.getProperty("oliphant.hub.enabled");
+			if ((hubString!=null) && (hubString.equals("true"))) {listener.specificNotifyListener = new HubNotifyListener(listener.specificNotifyListener);}
 			listener.specificNotifyListener.prepare(config);
+			listener.specificNotifyListener.setNotificationHandler(listener);
 			}
 		catch (ClassNotFoundException e)
 			{
@@ -274,5 +1004,54 @@ public class NotifyListener implements PostLoadEventListener, PersistEventListen
 			}
 		String allowStaleString = config.getProperty("oliphant.allow_stale_load");
 		if ((allowStaleString!=null) && (allowStaleString.equals("false"))) {listener.allowStaleLoad = false;}
+		String replicaReadsString = config.getProperty("oliphant.replica_reads");
+		if ((replicaReadsString!=null) && (replicaReadsString.equals("true"))) {listener.replicaReads = true;}
+		String eagerStartString = config.getProperty("oliphant.eager_start");
+		if ((eagerStartString!=null) && (eagerStartString.equals("true"))) {listener.eagerStart = true;}
+		String hotSpotsString = config.getProperty("oliphant.hotspots.enabled");
+		if ((hotSpotsString!=null) && hotSpotsString.equals("true"))
+			{
+			int width = getIntProperty(config, "oliphant.hotspots.width", 2048);
+			int depth = getIntProperty(config, "oliphant.hotspots.depth", 4);
+			int topSize = getIntProperty(config, "oliphant.hotspots.top_size", 20);
+			listener.changeTracker = new HotSpotTracker(width, depth, topSize);
+			listener.staleTracker = new HotSpotTracker(width, depth, topSize);
+			}
+		String sharedFile = config.getProperty("oliphant.shared_registry.file");
+		if (sharedFile!=null)
+			{
+			listener.sharedTable = new SharedVersionTable(sharedFile, getIntProperty(config, "oliphant.shared_registry.capacity", 262144));
+			listener.sharedInterval = getIntProperty(config, "oliphant.shared_registry.interval", 50);
+			}
+		String recordFile = config.getProperty("oliphant.record.file");
+		if (recordFile!=null)
+			{
+			listener.recorder = new TraceRecorder(recordFile, getIntProperty(config, "oliphant.record.flush_interval", 1000));
+			String recordEventsString = config.getProperty("oliphant.record.events");
+			if ((recordEventsString!=null) && (recordEventsString.equals("true"))) {listener.recordEvents = true;}
+			}
+		String snapshotFile = config.getProperty("oliphant.snapshot.file");
+		if (snapshotFile!=null)
+			{
+			listener.snapshot = new RegistrySnapshot(snapshotFile);
+			listener.snapshotInterval = 1000L * getIntProperty(config, "oliphant.snapshot.interval", 60);
+			}
+		return listener;
+		}
+
+	private static ChangeFilter createFilter(Configuration config)
+		{
+		String useFilterString = config.getProperty("oliphant.filter.enabled");
+		if ((useFilterString!=null) && (useFilterString.equals("false"))) {return null;}
+		int expectedEntries = getIntProperty(config, "oliphant.filter.expected_entries", 100000);
+		String falsePositiveRateString = config.getProperty("oliphant.filter.false_positive_rate");
+		double falsePositiveRate = (falsePositiveRateString==null) ? 0.01 : Double.parseDouble(falsePositiveRateString);
+		return new ChangeFilter(expectedEntries, falsePositiveRate);
+		}
+
+	private static int getIntProperty(Configuration config, String name, int defaultValue)
+		{
+		String value = config.getProperty(name);
+		return (value==null) ? defaultValue : Integer.parseInt(value);
 		}
 	}
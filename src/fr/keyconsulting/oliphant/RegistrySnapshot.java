@@ -0,0 +1,154 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+
+// Copy of the version registry in a memory mapped file, so that a restarted node does not start from an empty registry.
+// The watermark is the position of the change stream the copy is consistent with.
+// File layout : magic, format, watermark, entry count, then for each entry its UID, version and notified flag. Strings are stored as a length followed by UTF-8 bytes.
+public class RegistrySnapshot
+	{
+	private static final int MAGIC = 0x4F4C5048;
+	private static final int FORMAT = 1;
+
+	private final File file;
+
+	public RegistrySnapshot(String fileName)
+		{
+		file = new File(fileName);
+		}
+
+	public synchronized void write(VersionRegistry registry, String watermark)
+		{
+		List<String> uidList = new ArrayList<String>();
+		List<String> versionList = new ArrayList<String>();
+		List<Boolean> notifiedList = new ArrayList<Boolean>();
+		registry.copyEntries(uidList, versionList, notifiedList);
+		int count = uidList.size();
+		try
+			{
+			byte[] watermarkBytes = watermark.getBytes("UTF-8");
+			byte[][] uids = new byte[count][];
+			byte[][] versions = new byte[count][];
+			long size = 4 + 4 + 4 + watermarkBytes.length + 4;
+			for (int i=0; i<count; i++)
+				{
+				uids[i] = uidList.get(i).getBytes("UTF-8");
+				versions[i] = versionList.get(i).getBytes("UTF-8");
+				size += 4 + uids[i].length + 4 + versions[i].length + 1;
+				}
+
+			// Write a new file and swap it in, so that a crash never leaves a truncated snapshot behind
+			File tmp = new File(file.getPath()+".tmp");
+			tmp.delete();
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try
+				{
+				FileChannel channel = raf.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				buffer.putInt(MAGIC);
+				buffer.putInt(FORMAT);
+				putBytes(buffer, watermarkBytes);
+				buffer.putInt(count);
+				for (int i=0; i<count; i++)
+					{
+					putBytes(buffer, uids[i]);
+					putBytes(buffer, versions[i]);
+					buffer.put((byte) (notifiedList.get(i).booleanValue() ? 1 : 0));
+					}
+				buffer.force();
+				}
+			finally
+				{
+				raf.close();
+				}
+			if (!tmp.renameTo(file))
+				{
+				file.delete();
+				if (!tmp.renameTo(file)) {throw new IOException("Could not replace "+file);}
+				}
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not write the Oliphant registry snapshot to "+file, e);
+			}
+		}
+
+	// Loads the snapshot into the registry and returns its watermark, or null if there is no snapshot
+	public synchronized String read(VersionRegistry registry)
+		{
+		if (!file.exists()) {return null;}
+		try
+			{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+				{
+				FileChannel channel = raf.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if ((buffer.getInt() != MAGIC) || (buffer.getInt() != FORMAT))
+					{
+					throw new IOException("Not an Oliphant registry snapshot");
+					}
+				String watermark = getString(buffer);
+				int count = buffer.getInt();
+				for (int i=0; i<count; i++)
+					{
+					String uid = getString(buffer);
+					String version = getString(buffer);
+					registry.restore(uid, version, buffer.get() != 0);
+					}
+				return watermark;
+				}
+			finally
+				{
+				raf.close();
+				}
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not read the Oliphant registry snapshot from "+file, e);
+			}
+		}
+
+	private static void putBytes(MappedByteBuffer buffer, byte[] bytes)
+		{
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+		}
+
+	private static String getString(MappedByteBuffer buffer) throws UnsupportedEncodingException
+		{
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+		}
+	}
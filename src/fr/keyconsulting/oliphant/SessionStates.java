@@ -0,0 +1,84 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// What we remember about the open sessions of a session factory, forgotten once they are garbage collected.
+// Sessions are spread over stripes with their own lock by identity, so that sessions loading in parallel rarely wait for each other.
+class SessionStates
+	{
+	private static final int STRIPES = 16;
+
+	// Kept for each session that loaded from a replica, or was asked whether it does
+	static class State
+		{
+		final boolean replica; // Whether the connection of the session was read-only on its first load
+		volatile boolean pinned = false; // Whether the session loaded an object from a lagging replica
+
+		State(boolean replica)
+			{
+			this.replica = replica;
+			}
+		}
+
+	private final Map<Object,State>[] stripes;
+
+	@SuppressWarnings("unchecked")
+	SessionStates()
+		{
+		stripes = new Map[STRIPES];
+		for (int i=0; i<STRIPES; i++)
+			{
+			stripes[i] = new WeakHashMap<Object,State>();
+			}
+		}
+
+	private Map<Object,State> getStripe(Object session)
+		{
+		return stripes[(System.identityHashCode(session) & 0x7fffffff) % STRIPES];
+		}
+
+	// Null if the session was never seen
+	State get(Object session)
+		{
+		Map<Object,State> stripe = getStripe(session);
+		synchronized (stripe)
+			{
+			return stripe.get(session);
+			}
+		}
+
+	// Keeps the first state put for a session
+	State putIfAbsent(Object session, State state)
+		{
+		Map<Object,State> stripe = getStripe(session);
+		synchronized (stripe)
+			{
+			State known = stripe.get(session);
+			if (known != null) {return known;}
+			stripe.put(session, state);
+			return state;
+			}
+		}
+	}
@@ -0,0 +1,386 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Versions shared by the JVMs of a host through a memory mapped file. A single JVM, the one holding the lock file, listens to
+// notifications and writes the table, the others read it instead of listening themselves.
+// Open addressing with linear probing. Entries are never removed, deletions being stored as tombstones, so probe chains never break.
+// Each slot has a sequence number that is odd while the writer changes it : readers retry until they read the same even number before and after.
+// Plain buffer accesses may be reordered by the compiler and the processor, so slots are accessed through MappedMemory. The writer makes the sequence odd with a volatile store, which nothing after it can pass, then stores the slot with ordered
+// stores, each one becoming visible after everything stored before it. Readers load the sequence and the slot with volatile loads, which
+// stay in program order : they cannot see the closing sequence and miss a change made before it. Processes mapping the same file share
+// its pages, the processor keeping them coherent like any other memory.
+// Slot layout : sequence, two hashes of the UID that identify it, version, version kind, UID length and UTF-8 bytes. UIDs too long
+// for the slot are identified by their hashes only, and cannot be resynchronized when another JVM takes over the writer role.
+// Versions are stored as longs, numbers and transaction ids as is and timestamps as microseconds. Other versions cannot be shared :
+// the writer then marks the table as degraded, as it does when the table is full, and readers go back to listening themselves.
+public class SharedVersionTable
+	{
+	private static final int MAGIC = 0x4F4C5053;
+	private static final int FORMAT = 3;
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 128;
+	private static final int MAX_UID_BYTES = SLOT_SIZE - 40;
+	private static final double MAX_LOAD = 0.75;
+	private static final int MAX_CAPACITY = 1 << 24; // Keeps offsets in an int
+	private static final int MAX_SPINS = 10000; // A writer that died in the middle of a change leaves its slot unreadable
+
+	private static final int EMPTY = 0;
+	private static final int NUMBER = 1;
+	private static final int TIMESTAMP = 2;
+	private static final int DELETED = 3;
+	private static final int XID = 4;
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharedVersionTable.class);
+
+	private final File file;
+	private final int capacity; // Number of slots, a power of two
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	private MappedMemory memory; // Same mapping, in native byte order like the buffer
+	private RandomAccessFile lockFile;
+	private FileLock writerLock;
+	private int size = 0; // Used slots, only known to the writer
+	private boolean degradedLogged = false;
+
+	public SharedVersionTable(String fileName, int minCapacity)
+		{
+		file = new File(fileName);
+		int c = 1024;
+		while ((c < minCapacity) && (c < MAX_CAPACITY)) {c <<= 1;}
+		capacity = c;
+		}
+
+	public synchronized void open()
+		{
+		try
+			{
+			raf = new RandomAccessFile(file, "rw");
+			long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			buffer.order(ByteOrder.nativeOrder());
+			memory = new MappedMemory(buffer);
+			lockFile = new RandomAccessFile(file.getPath()+".lock", "rw");
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not open the Oliphant shared registry "+file, e);
+			}
+		}
+
+	// Returns true if this JVM now writes the table. The lock is released by the operating system if the JVM dies.
+	public synchronized boolean tryBecomeWriter()
+		{
+		if (writerLock != null) {return true;}
+		try
+			{
+			writerLock = lockFile.getChannel().tryLock();
+			}
+		catch (OverlappingFileLockException e)
+			{
+			return false; // held by another session factory of this JVM
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not lock the Oliphant shared registry "+file, e);
+			}
+		if (writerLock == null) {return false;}
+		if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != FORMAT) || (buffer.getInt(8) != capacity))
+			{
+			// New file, or left by another version : start from an empty table
+			for (long i=0; i<(long) capacity * SLOT_SIZE; i+=8) {buffer.putLong((int) (HEADER_SIZE + i), 0);}
+			buffer.putInt(12, 0);
+			buffer.putInt(8, capacity);
+			buffer.putInt(4, FORMAT);
+			buffer.putInt(0, MAGIC);
+			size = 0;
+			}
+		else
+			{
+			// Taking over from a previous writer
+			size = 0;
+			for (int slot=0; slot<capacity; slot++)
+				{
+				int off = offset(slot);
+				long seq = memory.getLongVolatile(off);
+				if ((seq & 1) != 0) {memory.putOrderedLong(off, seq + 1);} // it died while changing this slot, the resync will fix its version
+				if (memory.getIntVolatile(off + 32) != EMPTY) {size++;}
+				}
+			}
+		return true;
+		}
+
+	// Empties a degraded table, once the writer taking it over copied the entries it resynchronizes, so that readers can trust it again.
+	// The flag is cleared last : readers looking at it meanwhile still go back to listening themselves.
+	public synchronized void reset()
+		{
+		for (int slot=0; slot<capacity; slot++)
+			{
+			int off = offset(slot);
+			if (memory.getIntVolatile(off + 32) == EMPTY) {continue;}
+			long seq = memory.getLongVolatile(off);
+			memory.putLongVolatile(off, seq + 1);
+			memory.putOrderedInt(off + 32, EMPTY);
+			memory.putOrderedLong(off, seq + 2);
+			}
+		size = 0;
+		degradedLogged = false;
+		memory.putIntVolatile(12, 0);
+		}
+
+	public synchronized boolean isWriter()
+		{
+		return writerLock != null;
+		}
+
+	// Whether readers can find the table, written by a live writer or left by a previous one
+	public boolean isInitialized()
+		{
+		return (buffer.getInt(0) == MAGIC) && (buffer.getInt(4) == FORMAT) && (buffer.getInt(8) == capacity);
+		}
+
+	// Set once the writer could not store a version, readers then cannot trust the table to hold every change
+	public boolean isDegraded()
+		{
+		return memory.getIntVolatile(12) != 0;
+		}
+
+	private void degrade(String reason)
+		{
+		memory.putIntVolatile(12, 1);
+		if (!degradedLogged) {LOG.error(reason+", the other JVMs of the host go back to listening to notifications themselves");}
+		degradedLogged = true;
+		}
+
+	// Only called by the writer
+	public synchronized void put(String uid, String version)
+		{
+		long kindAndValue[] = encode(version);
+		if (kindAndValue == null)
+			{
+			degrade("Version "+version+" of "+uid+" is neither a number nor a timestamp, it cannot be shared");
+			return;
+			}
+		long h1 = hash(uid, 0x9E3779B97F4A7C15L);
+		long h2 = hash(uid, 0xC2B2AE3D27D4EB4FL);
+		int mask = capacity - 1;
+		for (int n=0, slot=(int) h1 & mask; n<capacity; n++, slot=(slot+1) & mask)
+			{
+			int off = offset(slot);
+			int kind = memory.getIntVolatile(off + 32);
+			boolean found = (kind != EMPTY) && (memory.getLongVolatile(off + 8) == h1) && (memory.getLongVolatile(off + 16) == h2);
+			if (!found && (kind != EMPTY)) {continue;}
+			if (!found)
+				{
+				if (size >= capacity * MAX_LOAD)
+					{
+					degrade("The Oliphant shared registry "+file+" is full, raise oliphant.shared_registry.capacity");
+					return;
+					}
+				size++;
+				}
+			long seq = memory.getLongVolatile(off);
+			memory.putLongVolatile(off, seq + 1);
+			memory.putOrderedLong(off + 8, h1);
+			memory.putOrderedLong(off + 16, h2);
+			memory.putOrderedLong(off + 24, kindAndValue[1]);
+			if (!found)
+				{
+				byte[] uidBytes = getBytes(uid);
+				if (uidBytes.length <= MAX_UID_BYTES)
+					{
+					buffer.putInt(off + 36, uidBytes.length);
+					for (int i=0; i<uidBytes.length; i++) {buffer.put(off + 40 + i, uidBytes[i]);}
+					}
+				else {buffer.putInt(off + 36, -1);}
+				}
+			memory.putOrderedInt(off + 32, (int) kindAndValue[0]);
+			memory.putOrderedLong(off, seq + 2);
+			return;
+			}
+		}
+
+	// Latest version of an object, or null if the writer never published one
+	public String get(String uid)
+		{
+		long h1 = hash(uid, 0x9E3779B97F4A7C15L);
+		long h2 = hash(uid, 0xC2B2AE3D27D4EB4FL);
+		int mask = capacity - 1;
+		for (int n=0, slot=(int) h1 & mask; n<capacity; n++, slot=(slot+1) & mask)
+			{
+			int a = offset(slot);
+			for (int spins=0; ; spins++)
+				{
+				if (spins == MAX_SPINS) {return null;}
+				long seq = memory.getLongVolatile(a);
+				if ((seq & 1) != 0)
+					{
+					Thread.yield(); // being written
+					continue;
+					}
+				int kind = memory.getIntVolatile(a + 32);
+				long slotH1 = memory.getLongVolatile(a + 8);
+				long slotH2 = memory.getLongVolatile(a + 16);
+				long value = memory.getLongVolatile(a + 24);
+				if (memory.getLongVolatile(a) != seq) {continue;}
+				if (kind == EMPTY) {return null;}
+				if ((slotH1 == h1) && (slotH2 == h2)) {return decode(kind, value);}
+				break;
+				}
+			}
+		return null;
+		}
+
+	// Entries whose UID is stored, for the writer taking over from a previous one
+	public synchronized void copyEntries(List<String> uids, List<String> versions)
+		{
+		for (int slot=0; slot<capacity; slot++)
+			{
+			int off = offset(slot);
+			int kind = buffer.getInt(off + 32);
+			int length = buffer.getInt(off + 36);
+			if ((kind == EMPTY) || (length < 0)) {continue;}
+			byte[] uidBytes = new byte[length];
+			for (int i=0; i<length; i++) {uidBytes[i] = buffer.get(off + 40 + i);}
+			try
+				{
+				uids.add(new String(uidBytes, "UTF-8"));
+				}
+			catch (UnsupportedEncodingException e)
+				{
+				throw new HibernateException(e);
+				}
+			versions.add(decode(kind, buffer.getLong(off + 24)));
+			}
+		}
+
+	public synchronized void close()
+		{
+		try
+			{
+			if (writerLock != null) {writerLock.release();}
+			writerLock = null;
+			if (lockFile != null) {lockFile.close();}
+			if (raf != null) {raf.close();}
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not close the Oliphant shared registry "+file, e);
+			}
+		}
+
+	private static long[] encode(String version)
+		{
+		if (VersionRegistry.DELETED.equals(version)) {return new long[] {DELETED, 0};}
+		if (version.startsWith(VersionRegistry.XID_PREFIX))
+			{
+			try
+				{
+				return new long[] {XID, Long.parseLong(version.substring(VersionRegistry.XID_PREFIX.length()))};
+				}
+			catch (NumberFormatException e)
+				{
+				return null;
+				}
+			}
+		if (version.indexOf(' ') < 0)
+			{
+			try
+				{
+				return new long[] {NUMBER, Long.parseLong(version)};
+				}
+			catch (NumberFormatException e)
+				{
+				return null;
+				}
+			}
+		try
+			{
+			Timestamp t = Timestamp.valueOf(version);
+			return new long[] {TIMESTAMP, (t.getTime() / 1000) * 1000000 + t.getNanos() / 1000};
+			}
+		catch (IllegalArgumentException e)
+			{
+			return null;
+			}
+		}
+
+	private static String decode(int kind, long value)
+		{
+		if (kind == DELETED) {return VersionRegistry.DELETED;}
+		if (kind == NUMBER) {return Long.toString(value);}
+		if (kind == XID) {return VersionRegistry.XID_PREFIX+value;}
+		long seconds = (value >= 0) ? value / 1000000 : -((-value + 999999) / 1000000);
+		Timestamp t = new Timestamp(seconds * 1000);
+		t.setNanos((int) (value - seconds * 1000000) * 1000);
+		return t.toString();
+		}
+
+	private static int offset(int slot)
+		{
+		return HEADER_SIZE + slot * SLOT_SIZE;
+		}
+
+	private static byte[] getBytes(String s)
+		{
+		try
+			{
+			return s.getBytes("UTF-8");
+			}
+		catch (UnsupportedEncodingException e)
+			{
+			throw new HibernateException(e);
+			}
+		}
+
+	private static long hash(String s, long seed)
+		{
+		long h = seed;
+		for (int i=0; i<s.length(); i++)
+			{
+			h = (h ^ s.charAt(i)) * 0x100000001B3L;
+			}
+		// MurmurHash3 64-bit finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+		}
+	}
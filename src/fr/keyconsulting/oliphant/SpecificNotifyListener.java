@@ -21,13 +21,22 @@
 
 package fr.keyconsulting.oliphant;
 
+import java.sql.Connection;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import org.hibernate.cfg.Configuration;
 
 public interface SpecificNotifyListener
 	{
 	void prepare(Configuration config); // Add triggers to the DDL, and keep the configuration for future reference
 	void setUp(); // Connect to DB, subscribe to update notifications
+	void setNotificationHandler(NotificationHandler handler); // Handler to call back when notifications may have been lost
 	List<Notification> getLatestUpdates(); // Return the latest notifications
+	int drainUpdates(NotificationBuffer buffer); // Append the latest notifications to a buffer that the caller reuses, return how many were added
+	boolean pushesNotifications(); // True if notifications are handed to the handler as they arrive. drainUpdates is then given no buffer, returns once those sent before the call are handed, and may be called by several threads at once
+	Map<String,String> getCurrentVersions(String entityName, Collection<String> ids); // Query the current versions of some objects, deleted ones are left out
+	Map<String,String> getCurrentVersions(String entityName, Collection<String> ids, Connection connection); // Same, on the connection of a session
+	String getWatermark(); // Current position in the stream of changes, two equal watermarks mean nothing changed in between
 	void tearDown(); // Close the system properly (remove triggers, unsubscribe, etc ?)
 	}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.hibernate.HibernateException;
+
+// Reads back the records of a trace written by TraceRecorder, one at a time
+public class TraceReader
+	{
+	private final String fileName;
+	private DataInputStream in;
+	private long startTime;
+	private byte type;
+	private long time; // Microseconds since the start of the trace
+	private String payload;
+	private String tableName;
+	private String id;
+	private String version;
+
+	public TraceReader(String fileName)
+		{
+		this.fileName = fileName;
+		try
+			{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 65536));
+			if ((in.readInt() != TraceRecorder.MAGIC) || (in.readInt() != TraceRecorder.FORMAT))
+				{
+				in.close();
+				throw new HibernateException(fileName+" is not an Oliphant trace");
+				}
+			startTime = in.readLong();
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not open the Oliphant trace "+fileName, e);
+			}
+		}
+
+	// Moves to the next record, returns false at the end of the trace
+	public boolean next()
+		{
+		try
+			{
+			int b = in.read();
+			if (b < 0) {return false;}
+			type = (byte) b;
+			long delay = 0;
+			for (int shift=0; ; shift+=7)
+				{
+				b = in.readUnsignedByte();
+				delay |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {break;}
+				}
+			time += delay;
+			if (type == TraceRecorder.NOTIFICATION)
+				{
+				payload = in.readUTF();
+				tableName = null;
+				id = null;
+				version = null;
+				}
+			else
+				{
+				payload = null;
+				tableName = in.readUTF();
+				id = in.readUTF();
+				version = in.readUTF();
+				}
+			return true;
+			}
+		catch (EOFException e)
+			{
+			return false; // the recording JVM died in the middle of a record
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not read the Oliphant trace "+fileName, e);
+			}
+		}
+
+	public long getStartTime()
+		{
+		return startTime;
+		}
+
+	public byte getType()
+		{
+		return type;
+		}
+
+	public long getTime()
+		{
+		return time;
+		}
+
+	public String getPayload()
+		{
+		return payload;
+		}
+
+	public String getTableName()
+		{
+		return tableName;
+		}
+
+	public String getId()
+		{
+		return id;
+		}
+
+	public String getVersion()
+		{
+		return version;
+		}
+
+	public void close()
+		{
+		try
+			{
+			in.close();
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not close the Oliphant trace "+fileName, e);
+			}
+		}
+	}
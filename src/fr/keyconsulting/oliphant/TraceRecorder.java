@@ -0,0 +1,188 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.hibernate.HibernateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Writes the notifications received, and optionally the Hibernate events checked against them, to a file that can be replayed offline.
+// File layout : magic, format, start time in milliseconds, then records until the end of the file.
+// Each record is its type, the microseconds elapsed since the previous record as a variable length number, then
+// the raw payload for notifications, or the table name, id and version of the object for events. Strings are written with writeUTF.
+// Records are buffered and flushed periodically, so that a JVM that is killed loses at most the last flush interval of its trace.
+public class TraceRecorder
+	{
+	static final int MAGIC = 0x4F4C5054;
+	static final int FORMAT = 1;
+
+	public static final byte NOTIFICATION = 0;
+	public static final byte LOAD = 1;
+	public static final byte PERSIST = 2;
+	public static final byte FLUSH = 3;
+	public static final byte UPDATE = 4;
+
+	private final String fileName;
+	private final long flushInterval; // milliseconds
+	private DataOutputStream out;
+	private long last; // nanoTime of the previous record
+	private Timer flushTimer;
+
+	private static final Logger LOG = LoggerFactory.getLogger(TraceRecorder.class);
+
+	public TraceRecorder(String fileName)
+		{
+		this(fileName, 1000);
+		}
+
+	public TraceRecorder(String fileName, long flushInterval)
+		{
+		this.fileName = fileName;
+		this.flushInterval = flushInterval;
+		}
+
+	public synchronized void open()
+		{
+		try
+			{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(System.currentTimeMillis());
+			last = System.nanoTime();
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not open the Oliphant trace "+fileName, e);
+			}
+		flushTimer = new Timer("oliphant-trace", true);
+		flushTimer.schedule(new TimerTask()
+			{
+			public void run()
+				{
+				flush();
+				}
+			}, flushInterval, flushInterval);
+		}
+
+	public synchronized void flush()
+		{
+		if (out == null) {return;}
+		try
+			{
+			out.flush();
+			}
+		catch (IOException e)
+			{
+			failed(e);
+			}
+		}
+
+	public synchronized void recordNotifications(NotificationBuffer buffer)
+		{
+		if (out == null) {return;}
+		try
+			{
+			for (int i=0; i<buffer.size(); i++)
+				{
+				writeHeader(NOTIFICATION);
+				out.writeUTF(buffer.getPayload(i));
+				}
+			}
+		catch (IOException e)
+			{
+			failed(e);
+			}
+		}
+
+	public synchronized void recordEvent(byte type, String tableName, String id, String version)
+		{
+		if (out == null) {return;}
+		try
+			{
+			writeHeader(type);
+			out.writeUTF(tableName);
+			out.writeUTF(id);
+			out.writeUTF(version);
+			}
+		catch (IOException e)
+			{
+			failed(e);
+			}
+		}
+
+	public synchronized void close()
+		{
+		if (flushTimer != null) {flushTimer.cancel();}
+		flushTimer = null;
+		if (out == null) {return;}
+		try
+			{
+			out.close();
+			}
+		catch (IOException e)
+			{
+			throw new HibernateException("Could not close the Oliphant trace "+fileName, e);
+			}
+		finally
+			{
+			out = null;
+			}
+		}
+
+	private void writeHeader(byte type) throws IOException
+		{
+		long now = System.nanoTime();
+		out.writeByte(type);
+		// Records mostly come in bursts, so the delay usually fits in one or two bytes
+		long delay = Math.max((now - last) / 1000, 0);
+		while (delay >= 0x80)
+			{
+			out.writeByte((int) (delay & 0x7F) | 0x80);
+			delay >>>= 7;
+			}
+		out.writeByte((int) delay);
+		last = now;
+		}
+
+	// A recording problem must not break the application, stop recording
+	private void failed(IOException e)
+		{
+		LOG.error("Could not write to the Oliphant trace "+fileName+", recording stopped", e);
+		try
+			{
+			out.close();
+			}
+		catch (IOException ignored)
+			{
+			// already failing
+			}
+		out = null;
+		}
+	}
@@ -0,0 +1,383 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Latest known version of each object, as seen in change notifications or loaded from the database.
+// Entries are spread over stripes with their own lock, so that threads applying notifications in parallel rarely wait for each other.
+public class VersionRegistry
+	{
+	public static final String DELETED = "-1"; // Version of deleted objects
+	public static final String XID_PREFIX = "xid:"; // Versions taken from the PostgreSQL xmin system column, 32 bit transaction ids that wrap around
+
+	private final Stripe[] stripes;
+	private final ChangeFilter filter; // Approximates the notified set and the loaded versions that can make an object stale, may be null
+	private volatile SharedVersionTable sharedTable; // Versions shared with the other JVMs of the host, may be null
+	private volatile boolean sharedWriter; // Whether we write the shared versions, or read them instead of our own entries
+	private volatile boolean notifiedEvictionLogged = false;
+
+	private static final Logger LOG = LoggerFactory.getLogger(VersionRegistry.class);
+
+	public VersionRegistry(int maxEntries, ChangeFilter filter)
+		{
+		this(maxEntries, filter, 1);
+		}
+
+	public VersionRegistry(int maxEntries, ChangeFilter filter, int stripeCount)
+		{
+		this(maxEntries, 0, filter, stripeCount);
+		}
+
+	// maxLoadedEntries bounds the entries of objects that were loaded but never notified, 0 for no bound
+	public VersionRegistry(int maxEntries, int maxLoadedEntries, ChangeFilter filter, int stripeCount)
+		{
+		this.filter = filter;
+		stripes = new Stripe[Math.max(stripeCount, 1)];
+		int maxStripeEntries = (maxEntries <= 0) ? 0 : (maxEntries + stripes.length - 1) / stripes.length;
+		int maxStripeLoaded = (maxLoadedEntries <= 0) ? 0 : (maxLoadedEntries + stripes.length - 1) / stripes.length;
+		for (int i=0; i<stripes.length; i++)
+			{
+			stripes[i] = new Stripe(maxStripeEntries, maxStripeLoaded);
+			}
+		}
+
+	public static String getUid(String tableName, String id)
+		{
+		return tableName+"#"+id;
+		}
+
+	public ChangeFilter getFilter()
+		{
+		return filter;
+		}
+
+	public int getStripeCount()
+		{
+		return stripes.length;
+		}
+
+	public void setSharedTable(SharedVersionTable table, boolean writer)
+		{
+		sharedTable = table;
+		sharedWriter = writer;
+		}
+
+	// Readers of a shared table do not receive notifications, so their filter would only tell them they know nothing
+	private boolean isReadingShared()
+		{
+		return (sharedTable != null) && !sharedWriter;
+		}
+
+	// Cheap check that can be done before building the UID. A false result means we know of no version newer than the first one loaded.
+	public boolean mightHaveChanged(String tableName, String id)
+		{
+		return (filter == null) || isReadingShared() || filter.mightContain(tableName, id);
+		}
+
+	public String getLatestVersion(String tableName, String id)
+		{
+		if (!mightHaveChanged(tableName, id)) {return null;}
+		String uid = getUid(tableName, id);
+		if (isReadingShared()) {return sharedTable.get(uid);}
+		Stripe stripe = getStripe(uid);
+		synchronized (stripe)
+			{
+			if ((filter != null) && !stripe.notified.contains(uid) && !stripe.filtered.contains(uid)) {filter.recordFalsePositive();}
+			return stripe.versions.get(uid);
+			}
+		}
+
+	// Remember the version of a loaded object, unless we already know about a newer one.
+	// The first version loaded cannot make an object stale, so it is kept out of the filter. A newer one goes in the filter,
+	// since objects loaded before it are stale.
+	public void seed(String tableName, String id, String version)
+		{
+		if (isReadingShared()) {return;}
+		String uid = getUid(tableName, id);
+		Stripe stripe = getStripe(uid);
+		synchronized (stripe)
+			{
+			String known = stripe.versions.get(uid);
+			if (known == null) {stripe.put(uid, version);}
+			else if (!DELETED.equals(known) && (compareVersions(version, known) > 0))
+				{
+				stripe.put(uid, version);
+				stripe.addToFilter(uid);
+				}
+			}
+		}
+
+	public void update(String uid, String version)
+		{
+		update(uid, version, DELETED.equals(version) ? Notification.Operation.DELETE : Notification.Operation.UPDATE);
+		}
+
+	// Versions only move forward, so that notifications arriving late or out of order do not hide a newer version.
+	// Deletions are final, unless the row is inserted again.
+	public void update(String uid, String version, Notification.Operation operation)
+		{
+		if (operation == Notification.Operation.DELETE) {version = DELETED;}
+		Stripe stripe = getStripe(uid);
+		synchronized (stripe)
+			{
+			String known = stripe.versions.get(uid);
+			if (stripe.notified.add(uid))
+				{
+				stripe.seeded.remove(uid);
+				if ((filter != null) && !stripe.filtered.remove(uid))
+					{
+					int sep = uid.indexOf('#');
+					filter.add(uid.substring(0, sep), uid.substring(sep+1));
+					}
+				}
+			if ((known == null) || (operation != Notification.Operation.UPDATE) || (!DELETED.equals(known) && (compareVersions(version, known) > 0)))
+				{
+				stripe.put(uid, version);
+				}
+			if (sharedWriter) {sharedTable.put(uid, stripe.versions.containsKey(uid) ? stripe.versions.get(uid) : version);}
+			}
+		}
+
+	// Bypasses the filter, for maintenance tasks that go through all known objects
+	public String get(String uid)
+		{
+		Stripe stripe = getStripe(uid);
+		synchronized (stripe)
+			{
+			return stripe.versions.get(uid);
+			}
+		}
+
+	public Map<String,List<String>> getIdsByTable()
+		{
+		Map<String,List<String>> idsByTable = new HashMap<String,List<String>>();
+		for (int s=0; s<stripes.length; s++)
+			{
+			synchronized (stripes[s])
+				{
+				for (Iterator<String> i = stripes[s].versions.keySet().iterator(); i.hasNext();)
+					{
+					String uid = i.next();
+					int sep = uid.indexOf('#');
+					String tableName = uid.substring(0, sep);
+					List<String> ids = idsByTable.get(tableName);
+					if (ids == null)
+						{
+						ids = new ArrayList<String>();
+						idsByTable.put(tableName, ids);
+						}
+					ids.add(uid.substring(sep+1));
+					}
+				}
+			}
+		return idsByTable;
+		}
+
+	public void copyEntries(List<String> uids, List<String> versionList, List<Boolean> notifiedList)
+		{
+		for (int s=0; s<stripes.length; s++)
+			{
+			synchronized (stripes[s])
+				{
+				for (Iterator<Map.Entry<String,String>> i = stripes[s].versions.entrySet().iterator(); i.hasNext();)
+					{
+					Map.Entry<String,String> entry = i.next();
+					uids.add(entry.getKey());
+					versionList.add(entry.getValue());
+					notifiedList.add(Boolean.valueOf(stripes[s].notified.contains(entry.getKey())));
+					}
+				}
+			}
+		}
+
+	// Put back an entry copied with copyEntries. Loaded versions may be newer than objects already cached, so they go in the filter.
+	public void restore(String uid, String version, boolean wasNotified)
+		{
+		if (wasNotified) {update(uid, version);}
+		else
+			{
+			Stripe stripe = getStripe(uid);
+			synchronized (stripe)
+				{
+				stripe.put(uid, version);
+				stripe.addToFilter(uid);
+				}
+			}
+		}
+
+	// True if the latest known version is newer than the version of the object in hand
+	public static boolean isNewer(String latestVersion, String version)
+		{
+		if (latestVersion == null) {return false;}
+		if (DELETED.equals(latestVersion)) {return true;}
+		return compareVersions(latestVersion, version) > 0;
+		}
+
+	// Compares versions as numbers or timestamps when both can be read as such, positive if a is newer than b.
+	// Versions that cannot be ordered are only compared for equality, a different version being taken as newer.
+	public static int compareVersions(String a, String b)
+		{
+		if (a.equals(b)) {return 0;}
+		if (a.startsWith(XID_PREFIX) && b.startsWith(XID_PREFIX))
+			{
+			try
+				{
+				// Modulo 2^32, like PostgreSQL : a is newer if it is less than 2^31 transactions ahead of b
+				return (int) (Long.parseLong(a.substring(XID_PREFIX.length())) - Long.parseLong(b.substring(XID_PREFIX.length())));
+				}
+			catch (NumberFormatException e)
+				{
+				return 1;
+				}
+			}
+		if (isNumber(a) && isNumber(b))
+			{
+			long x = Long.parseLong(a);
+			long y = Long.parseLong(b);
+			return (x < y) ? -1 : ((x == y) ? 0 : 1);
+			}
+		if (isTimestamp(a) && isTimestamp(b))
+			{
+			try
+				{
+				// Hibernate and PostgreSQL do not print fractional seconds the same way
+				return Timestamp.valueOf(a).compareTo(Timestamp.valueOf(b));
+				}
+			catch (IllegalArgumentException e)
+				{
+				return 1;
+				}
+			}
+		return 1;
+		}
+
+	private static boolean isNumber(String s)
+		{
+		int length = s.length();
+		if ((length == 0) || (length > 18)) {return false;}
+		for (int i=0; i<length; i++)
+			{
+			char c = s.charAt(i);
+			if (((c < '0') || (c > '9')) && !((c == '-') && (i == 0) && (length > 1))) {return false;}
+			}
+		return true;
+		}
+
+	// yyyy-mm-dd hh:mm:ss[.fffffffff]
+	private static boolean isTimestamp(String s)
+		{
+		return (s.length() >= 19) && (s.charAt(4) == '-') && (s.charAt(7) == '-') && (s.charAt(10) == ' ') && (s.charAt(13) == ':') && (s.charAt(16) == ':');
+		}
+
+	public int size()
+		{
+		int size = 0;
+		for (int s=0; s<stripes.length; s++)
+			{
+			synchronized (stripes[s])
+				{
+				size += stripes[s].versions.size();
+				}
+			}
+		return size;
+		}
+
+	private Stripe getStripe(String uid)
+		{
+		if (stripes.length == 1) {return stripes[0];}
+		int h = uid.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h & Integer.MAX_VALUE) % stripes.length];
+		}
+
+	// When full, the oldest entries that were only loaded go first : they merely spare a false positive of the filter.
+	// Notified entries are only evicted when there is nothing else, and their changes are then no longer detected.
+	private class Stripe
+		{
+		private final int maxEntries;
+		private final int maxLoaded;
+		private final Map<String,String> versions = new LinkedHashMap<String,String>(); // Maps object UIDs to latest known versions
+		private final Set<String> notified = new HashSet<String>(); // UIDs we received change notifications for
+		private final Set<String> seeded = new LinkedHashSet<String>(); // The other UIDs, oldest first
+		private final Set<String> filtered = new HashSet<String>(); // Seeded UIDs that were added to the filter
+
+		private Stripe(int maxEntries, int maxLoaded)
+			{
+			this.maxEntries = maxEntries;
+			this.maxLoaded = maxLoaded;
+			}
+
+		private void put(String uid, String version)
+			{
+			if ((versions.put(uid, version) == null) && !notified.contains(uid)) {seeded.add(uid);}
+			boolean full = (maxEntries > 0) && (versions.size() > maxEntries);
+			if (!full && ((maxLoaded <= 0) || (seeded.size() <= maxLoaded))) {return;}
+			Iterator<String> i = seeded.iterator();
+			if (i.hasNext())
+				{
+				String oldest = i.next();
+				versions.remove(oldest);
+				i.remove();
+				if (filtered.remove(oldest)) {removeFromFilter(oldest);}
+				return;
+				}
+			String eldest = versions.keySet().iterator().next();
+			versions.remove(eldest);
+			forget(eldest);
+			if (!notifiedEvictionLogged) {LOG.warn("The version registry is full of notified objects, changes to the evicted ones go undetected. Raise oliphant.registry.max_entries");}
+			notifiedEvictionLogged = true;
+			}
+
+		private void forget(String uid)
+			{
+			if (notified.remove(uid)) {removeFromFilter(uid);}
+			}
+
+		// For a seeded entry that is already in the registry
+		private void addToFilter(String uid)
+			{
+			if ((filter == null) || notified.contains(uid) || !filtered.add(uid)) {return;}
+			int sep = uid.indexOf('#');
+			filter.add(uid.substring(0, sep), uid.substring(sep+1));
+			}
+
+		private void removeFromFilter(String uid)
+			{
+			if (filter == null) {return;}
+			int sep = uid.indexOf('#');
+			filter.remove(uid.substring(0, sep), uid.substring(sep+1));
+			}
+		}
+	}
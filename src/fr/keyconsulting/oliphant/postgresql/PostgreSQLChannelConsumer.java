@@ -0,0 +1,244 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.postgresql;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.keyconsulting.oliphant.NotificationBuffer;
+import fr.keyconsulting.oliphant.NotificationHandler;
+
+// Listens to one of the oliphant_<n> channels on its own connection, and pushes what it receives to the handler from its own thread.
+// Triggers send all the changes of a row to the same channel, so each row is still seen in order.
+// Sessions draining never query the channel : they ask for a poll and wait until one that started after them is pushed, so that
+// sessions waiting together share the same round trip. Without waiting sessions, the thread polls less and less often while the
+// channel stays empty, up to the maximum poll interval.
+class PostgreSQLChannelConsumer extends Thread
+	{
+	private final PostgreSQLNotifyListener owner;
+	private final NotificationHandler handler;
+	private final String channel;
+	private final long pollInterval;
+	private final long maxPollInterval;
+	private final NotificationBuffer buffer = new NotificationBuffer();
+	private Connection conn;
+	private volatile boolean running = true;
+	private final Object progress = new Object(); // Guards the poll counts, notified when a poll ends or is asked for
+	private long started = 0; // Number of polls started
+	private long completed = 0; // Number of polls whose notifications were pushed
+	private int waiting = 0; // Sessions waiting for a poll
+	private boolean connected = true; // False while reconnecting, nothing can be waited for then
+
+	private static final Logger LOG = LoggerFactory.getLogger(PostgreSQLChannelConsumer.class);
+
+	PostgreSQLChannelConsumer(PostgreSQLNotifyListener owner, NotificationHandler handler, int channelNumber, long pollInterval, long maxPollInterval)
+		{
+		super("oliphant-consumer-"+channelNumber);
+		setDaemon(true);
+		this.owner = owner;
+		this.handler = handler;
+		this.channel = "oliphant_"+channelNumber;
+		this.pollInterval = pollInterval;
+		this.maxPollInterval = Math.max(maxPollInterval, pollInterval);
+		}
+
+	// Called before the thread starts, so that changes committed once setUp returns are not missed
+	void connect() throws SQLException
+		{
+		Connection c = owner.openConnection();
+		Statement stmt = c.createStatement();
+		stmt.execute("LISTEN "+channel);
+		stmt.close();
+		synchronized (this)
+			{
+			conn = c;
+			}
+		}
+
+	public void run()
+		{
+		long interval = pollInterval;
+		while (running)
+			{
+			try
+				{
+				synchronized (progress)
+					{
+					started++;
+					}
+				int count = poll();
+				synchronized (progress)
+					{
+					completed = started;
+					progress.notifyAll();
+					if (count > 0) {interval = pollInterval;}
+					else if (waiting == 0)
+						{
+						progress.wait(interval);
+						interval = Math.min(interval * 2, maxPollInterval);
+						}
+					}
+				}
+			catch (InterruptedException e)
+				{
+				// stopped
+				}
+			catch (SQLException sqle)
+				{
+				if (!running) {break;}
+				LOG.warn("Lost the PostgreSQL connection of "+channel+", reconnecting", sqle);
+				closeQuietly();
+				setConnected(false);
+				handler.notificationsInterrupted(owner);
+				if (!reconnect()) {break;}
+				setConnected(true);
+				// Notifications sent to this channel during the outage are lost
+				try
+					{
+					handler.notificationsLost(owner);
+					}
+				catch (RuntimeException e)
+					{
+					LOG.error("Resync after reconnection failed", e);
+					}
+				}
+			}
+		setConnected(false);
+		closeQuietly();
+		}
+
+	// Asks for a poll that starts after the call, and returns the count to pass to awaitPoll
+	long requestPoll()
+		{
+		synchronized (progress)
+			{
+			waiting++;
+			progress.notifyAll();
+			return started + 1;
+			}
+		}
+
+	// Waits until the notifications that reached the channel before requestPoll was called are pushed.
+	// Returns at once while the connection is lost, the resync that follows its return catches up.
+	void awaitPoll(long target)
+		{
+		synchronized (progress)
+			{
+			try
+				{
+				while (running && connected && (completed < target)) {progress.wait();}
+				}
+			catch (InterruptedException e)
+				{
+				Thread.currentThread().interrupt();
+				}
+			finally
+				{
+				waiting--;
+				}
+			}
+		}
+
+	private void setConnected(boolean value)
+		{
+		synchronized (progress)
+			{
+			connected = value;
+			progress.notifyAll();
+			}
+		}
+
+	private synchronized int poll() throws SQLException
+		{
+		// issue a dummy query to contact the backend and receive any pending notifications.
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT 1");
+		rs.close();
+		stmt.close();
+
+		PGNotification notifications[] = ((PGConnection) conn).getNotifications();
+		if ((notifications == null) || (notifications.length == 0)) {return 0;}
+		buffer.clear();
+		for (int i=0; i<notifications.length; i++)
+			{
+			String payload = notifications[i].getParameter();
+			if (LOG.isDebugEnabled()) {LOG.debug("Notif from PostgreSQL on "+channel+" : "+payload);}
+			buffer.add(payload, owner.getKnownTables());
+			}
+		handler.notificationsReceived(owner, buffer);
+		return notifications.length;
+		}
+
+	private boolean reconnect()
+		{
+		long delay = owner.getInitialReconnectDelay();
+		while (running)
+			{
+			try
+				{
+				Thread.sleep(delay);
+				}
+			catch (InterruptedException e)
+				{
+				return false; // torn down
+				}
+			try
+				{
+				connect();
+				if (!running) {return false;} // torn down while connecting, run closes the connection
+				LOG.info("Reconnected the PostgreSQL connection of "+channel);
+				return true;
+				}
+			catch (SQLException sqle)
+				{
+				LOG.debug("Reconnection failed, next try in "+delay+" ms", sqle);
+				delay = Math.min(delay * 2, owner.getMaxReconnectDelay());
+				}
+			}
+		return false;
+		}
+
+	void shutdown()
+		{
+		running = false;
+		setConnected(false);
+		interrupt();
+		}
+
+	private synchronized void closeQuietly()
+		{
+		try
+			{
+			if (conn != null) {conn.close();}
+			}
+		catch (SQLException sqle)
+			{
+			LOG.debug("Error while closing the connection of "+channel, sqle);
+			}
+		}
+	}
@@ -21,7 +21,9 @@
 
 package fr.keyconsulting.oliphant.postgresql;
 
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
 import org.hibernate.HibernateException;
 import org.hibernate.mapping.*;
@@ -29,6 +31,10 @@ import org.hibernate.cfg.Configuration;
 import org.hibernate.dialect.Dialect;
 import org.hibernate.engine.Mapping;
 
+import fr.keyconsulting.oliphant.CollectionInfo;
+import fr.keyconsulting.oliphant.EntityInfo;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
 public class PostgreSQLListenerAuxiliary extends AbstractAuxiliaryDatabaseObject
 	{
 	private static final long serialVersionUID = 1L;
@@ -43,52 +49,194 @@ public class PostgreSQLListenerAuxiliary extends AbstractAuxiliaryDatabaseObject
 	public String sqlCreateString(Dialect dialect, Mapping mapping, String defaultCatalog, String defaultSchema)
 		{
 		StringBuilder sb = new StringBuilder();
+		// Inserts cannot make objects stale, but they tell when a deleted id is reused
+		boolean notifyInserts = "true".equals(config.getProperty("oliphant.notify_inserts"));
+		int channels = PostgreSQLNotifyListener.getChannelCount(config);
+		String sequenceName = getSequenceName(defaultSchema);
+
+		// Counts the transactions that notified changes, so that the listener can tell whether any happened while it was away.
+		// Shared by the triggers of all the session factories of the database, so it may already exist, and it is never dropped.
+		sb.append("DO $$\n");
+		sb.append("	BEGIN\n");
+		sb.append("		CREATE SEQUENCE "+sequenceName+";\n");
+		sb.append("	EXCEPTION WHEN duplicate_table THEN NULL;\n");
+		sb.append("	END;\n");
+		sb.append("$$;\n");
+		sb.append("\n");
 
 		for(Iterator i = config.getClassMappings(); i.hasNext();)
 			{
 			PersistentClass c = (PersistentClass) i.next();
+			if (!EntityInfo.isMonitored(config, c)) {continue;}
 			Table table = c.getTable();
 			if (table.getPrimaryKey().getColumnSpan()>1)
 				{
 				throw new HibernateException("Oliphant does not support primary keys that span multiple columns. Objects of class "+c.getClassName()+" will not be monitored for changes.");
 				}
 			String tableName = table.getName().toLowerCase();
+			String qualifiedTableName = table.getQualifiedName(dialect, defaultCatalog, defaultSchema);
 
-			String idColName = table.getPrimaryKey().getColumn(0).getName();
+			String idColName = table.getPrimaryKey().getColumn(0).getQuotedName(dialect);
 
-			Iterator verCols = c.getVersion().getColumnIterator();
-			if (!verCols.hasNext())
+			String newVersion;
+			String versionChanged; // null if every update changes the version
+			if (!c.isVersioned())
 				{
-				throw new HibernateException("Oliphant does not support version properties that span multiple columns. Objects of class "+c.getClassName()+" will not be monitored for changes.");
+				if (EntityInfo.getXminProperty(c) == null)
+					{
+					throw new HibernateException("Oliphant does not support non versioned entities, unless they map a read-only property on the xmin column. Objects of class "+c.getClassName()+" will not be monitored for changes.");
+					}
+				// Each update writes a new row version with the id of the updating transaction as xmin. System columns cannot be
+				// read from NEW, so the id is taken from txid_current(), without the epoch it adds. Within a savepoint, the row gets
+				// the id of the subtransaction, which is newer, so the object read back is not taken for stale.
+				newVersion = "'"+VersionRegistry.XID_PREFIX+"' || (txid_current() % 4294967296)::text";
+				versionChanged = null;
 				}
-			Column verCol = (Column) verCols.next();
-			String verColName = verCol.getName();
-			if (verCols.hasNext())
+			else
 				{
-				throw new HibernateException("Oliphant does not support non versioned entities. Objects of class "+c.getClassName()+" will not be monitored for changes.");
+				Iterator verCols = c.getVersion().getColumnIterator();
+				if (!verCols.hasNext())
+					{
+					throw new HibernateException("Oliphant does not support version properties without a column. Objects of class "+c.getClassName()+" will not be monitored for changes.");
+					}
+				Column verCol = (Column) verCols.next();
+				String verColName = verCol.getQuotedName(dialect);
+				if (verCols.hasNext())
+					{
+					throw new HibernateException("Oliphant does not support version properties that span multiple columns. Objects of class "+c.getClassName()+" will not be monitored for changes.");
+					}
+				newVersion = "NEW."+verColName+"::text";
+				versionChanged = "OLD."+verColName+" IS DISTINCT FROM NEW."+verColName;
 				}
+			// Payloads are sent as plain text, the listener splits them on the last separators so ids need no encoding
 			sb.append("CREATE OR REPLACE FUNCTION oliphant_"+tableName+"() RETURNS TRIGGER AS $$\n");
-			sb.append("	DECLARE\n");
-			sb.append("		VERSION TEXT;\n");
 			sb.append("	BEGIN\n");
-			sb.append("		IF TG_OP = 'UPDATE' THEN\n");
-			sb.append("			VERSION := NEW."+verColName+";\n");
-			sb.append("		ELSIF TG_OP = 'DELETE' THEN\n");
-			sb.append("			VERSION := -1;\n");
+			sb.append(getCountStatement(sequenceName));
+			sb.append("		IF TG_OP = 'DELETE' THEN\n");
+			sb.append("			PERFORM pg_notify("+getChannel(channels, "OLD."+idColName)+", '"+tableName+"#' || OLD."+idColName+"::text || '###-1###D###' || txid_current());\n");
+			sb.append("		ELSIF TG_OP = 'UPDATE' THEN\n");
+			sb.append("			PERFORM pg_notify("+getChannel(channels, "OLD."+idColName)+", '"+tableName+"#' || OLD."+idColName+"::text || '###' || "+newVersion+" || '###U###' || txid_current());\n");
+			sb.append("		ELSE\n");
+			sb.append("			PERFORM pg_notify("+getChannel(channels, "NEW."+idColName)+", '"+tableName+"#' || NEW."+idColName+"::text || '###' || "+newVersion+" || '###I###' || txid_current());\n");
 			sb.append("		END IF;\n");
-			sb.append("		PERFORM send_notify('oliphant', '"+tableName+"#' || encode(text(OLD."+idColName+")::bytea,'base64') || '###' || encode(text(VERSION)::bytea,'base64')); RETURN NULL;\n");
+			sb.append("		RETURN NULL;\n");
 			sb.append("	END;\n");
-			sb.append("$$ LANGUAGE 'plpgsql';\n");
+			sb.append("$$ LANGUAGE plpgsql;\n");
 			sb.append("\n");
+			// Updates that leave the version alone (made outside Hibernate) do not make objects stale, skip them before calling the function
 			sb.append("CREATE TRIGGER oliphant_"+tableName+"_trg\n");
-			sb.append("	AFTER DELETE OR UPDATE ON "+tableName+"\n");
+			sb.append("	AFTER UPDATE ON "+qualifiedTableName+"\n");
+			if (versionChanged != null) {sb.append("	FOR EACH ROW WHEN ("+versionChanged+")\n");}
+			else {sb.append("	FOR EACH ROW\n");}
+			sb.append("	EXECUTE PROCEDURE oliphant_"+tableName+"();\n");
+			sb.append("\n");
+			sb.append("CREATE TRIGGER oliphant_"+tableName+"_del_trg\n");
+			sb.append("	AFTER DELETE ON "+qualifiedTableName+"\n");
 			sb.append("	FOR EACH ROW EXECUTE PROCEDURE oliphant_"+tableName+"();\n");
 			sb.append("\n");
+			if (notifyInserts)
+				{
+				sb.append("CREATE TRIGGER oliphant_"+tableName+"_ins_trg\n");
+				sb.append("	AFTER INSERT ON "+qualifiedTableName+"\n");
+				sb.append("	FOR EACH ROW EXECUTE PROCEDURE oliphant_"+tableName+"();\n");
+				sb.append("\n");
+				}
+			}
+
+		// Collection tables, join tables or the child table of one-to-many associations, notify the owners whose collection changed
+		Set<String> keys = new HashSet<String>();
+		for (Iterator i = config.getCollectionMappings(); i.hasNext();)
+			{
+			Collection collection = (Collection) i.next();
+			if (!CollectionInfo.isTracked(config, collection) || !keys.add(CollectionInfo.getKey(collection))) {continue;}
+			String key = CollectionInfo.getKey(collection);
+			String functionName = "oliphant_"+key.replace('.', '_');
+			String keyColName = CollectionInfo.getKeyColumn(collection).getQuotedName(dialect);
+			String qualifiedTableName = collection.getCollectionTable().getQualifiedName(dialect, defaultCatalog, defaultSchema);
+			String oldNotify = "PERFORM pg_notify("+getChannel(channels, "OLD."+keyColName)+", '"+key+"#' || OLD."+keyColName+"::text || '###-1###C###' || txid_current());\n";
+			String newNotify = "PERFORM pg_notify("+getChannel(channels, "NEW."+keyColName)+", '"+key+"#' || NEW."+keyColName+"::text || '###-1###C###' || txid_current());\n";
+			// OLD cannot be used in insert triggers, nor NEW in delete triggers, even in a condition that is false
+			sb.append("CREATE OR REPLACE FUNCTION "+functionName+"() RETURNS TRIGGER AS $$\n");
+			sb.append("	BEGIN\n");
+			sb.append(getCountStatement(sequenceName));
+			sb.append("		IF TG_OP <> 'INSERT' THEN\n");
+			sb.append("			IF OLD."+keyColName+" IS NOT NULL THEN\n");
+			sb.append("				"+oldNotify);
+			sb.append("			END IF;\n");
+			sb.append("		END IF;\n");
+			sb.append("		IF TG_OP = 'INSERT' THEN\n");
+			sb.append("			IF NEW."+keyColName+" IS NOT NULL THEN\n");
+			sb.append("				"+newNotify);
+			sb.append("			END IF;\n");
+			sb.append("		ELSIF TG_OP = 'UPDATE' THEN\n");
+			sb.append("			IF (NEW."+keyColName+" IS NOT NULL) AND (NEW."+keyColName+" IS DISTINCT FROM OLD."+keyColName+") THEN\n");
+			sb.append("				"+newNotify);
+			sb.append("			END IF;\n");
+			sb.append("		END IF;\n");
+			sb.append("		RETURN NULL;\n");
+			sb.append("	END;\n");
+			sb.append("$$ LANGUAGE plpgsql;\n");
+			sb.append("\n");
+			sb.append("CREATE TRIGGER "+functionName+"_trg\n");
+			sb.append("	AFTER INSERT OR DELETE ON "+qualifiedTableName+"\n");
+			sb.append("	FOR EACH ROW EXECUTE PROCEDURE "+functionName+"();\n");
+			sb.append("\n");
+			// The child table of a one-to-many association is also an entity table, only changes of owner or position matter to the collection.
+			// Rows of join tables and element tables are the collection.
+			sb.append("CREATE TRIGGER "+functionName+"_upd_trg\n");
+			sb.append("	AFTER UPDATE ON "+qualifiedTableName+"\n");
+			if (collection.isOneToMany()) {sb.append("	FOR EACH ROW WHEN ("+getMembershipChange(collection, keyColName, dialect)+")\n");}
+			else {sb.append("	FOR EACH ROW\n");}
+			sb.append("	EXECUTE PROCEDURE "+functionName+"();\n");
+			sb.append("\n");
+			}
+
+		return sb.toString();
+		}
+
+	private static String getMembershipChange(Collection collection, String keyColName, Dialect dialect)
+		{
+		StringBuilder condition = new StringBuilder("(OLD."+keyColName+" IS DISTINCT FROM NEW."+keyColName+")");
+		if (collection.isIndexed())
+			{
+			for (Iterator i = ((IndexedCollection) collection).getIndex().getColumnIterator(); i.hasNext();)
+				{
+				Object column = i.next();
+				if (!(column instanceof Column)) {continue;} // formula
+				String indexColName = ((Column) column).getQuotedName(dialect);
+				condition.append(" OR (OLD."+indexColName+" IS DISTINCT FROM NEW."+indexColName+")");
+				}
 			}
+		return condition.toString();
+		}
 
+	// Counts the transaction once, on its first notified change : a setting local to the transaction tells that it was counted.
+	// Before 9.6, reading a setting that was never set fails, so each change is counted. The branch for later versions is only
+	// planned when it runs.
+	private static String getCountStatement(String sequenceName)
+		{
+		StringBuilder sb = new StringBuilder();
+		sb.append("		IF current_setting('server_version_num')::integer < 90600 THEN\n");
+		sb.append("			PERFORM nextval('"+sequenceName+"');\n");
+		sb.append("		ELSIF current_setting('oliphant.counted', true) IS DISTINCT FROM 'on' THEN\n");
+		sb.append("			PERFORM nextval('"+sequenceName+"');\n");
+		sb.append("			PERFORM set_config('oliphant.counted', 'on', true);\n");
+		sb.append("		END IF;\n");
 		return sb.toString();
 		}
 
+	static String getSequenceName(String defaultSchema)
+		{
+		return (defaultSchema == null) ? "oliphant_changes" : defaultSchema+".oliphant_changes";
+		}
+
+	// All the changes of a row go to the same channel, so that they are received in order
+	private static String getChannel(int channels, String idExpression)
+		{
+		if (channels == 1) {return "'oliphant'";}
+		return "'oliphant_' || ((hashtext("+idExpression+"::text) & 2147483647) % "+channels+")";
+		}
+
 	public String sqlDropString(Dialect dialect, String defaultCatalog, String defaultSchema)
 		{
 		StringBuilder sb = new StringBuilder();
@@ -96,16 +244,28 @@ public class PostgreSQLListenerAuxiliary extends AbstractAuxiliaryDatabaseObject
 		for(Iterator i = config.getClassMappings(); i.hasNext();)
 			{
 			PersistentClass c = (PersistentClass) i.next();
+			if (!EntityInfo.isMonitored(config, c)) {continue;}
 			Table table = c.getTable();
-			if ((table.getPrimaryKey().getColumnSpan()==1) && (c.getVersion().getColumnSpan()==1))
+			boolean versioned = c.isVersioned() ? (c.getVersion().getColumnSpan()==1) : (EntityInfo.getXminProperty(c) != null);
+			if ((table.getPrimaryKey().getColumnSpan()==1) && versioned)
 				{
 				String tableName = table.getName().toLowerCase();
 
-				sb.append("DROP FUNCTION oliphant_"+tableName+"()\n");
+				// CASCADE also drops the triggers using the function, and does not fail if the table is already gone
+				sb.append("DROP FUNCTION IF EXISTS oliphant_"+tableName+"() CASCADE;\n");
 				sb.append("\n");
 				}
 			}
 
+		Set<String> keys = new HashSet<String>();
+		for (Iterator i = config.getCollectionMappings(); i.hasNext();)
+			{
+			Collection collection = (Collection) i.next();
+			if (!CollectionInfo.isTracked(config, collection) || !keys.add(CollectionInfo.getKey(collection))) {continue;}
+			sb.append("DROP FUNCTION IF EXISTS oliphant_"+CollectionInfo.getKey(collection).replace('.', '_')+"() CASCADE;\n");
+			sb.append("\n");
+			}
+
 		return sb.toString();
 		}
 
@@ -22,11 +22,22 @@
 package fr.keyconsulting.oliphant.postgresql;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.hibernate.HibernateException;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.Mapping;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.mapping.Table;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.ResultSet;
@@ -36,32 +47,62 @@ import org.postgresql.PGConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fr.keyconsulting.oliphant.EntityInfo;
 import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotificationBuffer;
+import fr.keyconsulting.oliphant.NotificationHandler;
 import fr.keyconsulting.oliphant.SpecificNotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
 
 public class PostgreSQLNotifyListener implements SpecificNotifyListener
 	{
 	private PGConnection pgConn;
 	private Connection conn;
 	private Configuration config;
-	
+	private NotificationHandler handler;
+	private Thread reconnectThread; // Running while the connection is lost
+	private volatile boolean stopped = false; // Torn down, a reconnection still under way must not install its connection
+	private long initialReconnectDelay;
+	private long maxReconnectDelay;
+	private int resyncBatchSize;
+	private int channels; // Notification channels, each listened to by its own consumer when there are several
+	private long pollInterval;
+	private long maxPollInterval;
+	private long watermarkWait;
+	private List<PostgreSQLChannelConsumer> consumers = new CopyOnWriteArrayList<PostgreSQLChannelConsumer>();
+	private String[] knownTables;
+	private final Map<String,String> versionQueries = new HashMap<String,String>(); // Maps entity names to the query fetching their current versions, guarded by itself
+	private final Object queryLock = new Object(); // Guards queryConn, version queries never wait for a drain
+	private Connection queryConn; // Version queries only, opened by the first of them
+
 	private static final Logger LOG = LoggerFactory.getLogger(PostgreSQLNotifyListener.class);
 
 	public void prepare(Configuration cfg)
 		{
 		config = cfg;
 		config.addAuxiliaryDatabaseObject(new PostgreSQLListenerAuxiliary(config));
+		initialReconnectDelay = getLongProperty("oliphant.reconnect.initial_delay", 100);
+		maxReconnectDelay = getLongProperty("oliphant.reconnect.max_delay", 30000);
+		resyncBatchSize = (int) getLongProperty("oliphant.resync.batch_size", 1000);
+		channels = getChannelCount(config);
+		pollInterval = getLongProperty("oliphant.postgresql.poll_interval", 10);
+		maxPollInterval = getLongProperty("oliphant.postgresql.max_poll_interval", 1000);
+		watermarkWait = getLongProperty("oliphant.postgresql.watermark_wait", 5000);
+		}
+
+	// Shared with the triggers, which must send to the channels that are listened to
+	static int getChannelCount(Configuration config)
+		{
+		String value = config.getProperty("oliphant.postgresql.channels");
+		return (value==null) ? 1 : Math.max(Integer.parseInt(value), 1);
 		}
-	
+
 	public void setUp()
 		{
 		try
 			{
-			conn = DriverManager.getConnection(config.getProperty("hibernate.connection.url"), config.getProperty("hibernate.connection.username"), config.getProperty("hibernate.connection.password"));
-			pgConn = (PGConnection) conn;
-			Statement stmt = conn.createStatement();
-			stmt.execute("LISTEN oliphant");
-			stmt.close();
+			connect();
+			if (channels > 1) {startConsumers();}
 			}
 		catch (SQLException sqle)
 			{
@@ -69,10 +110,89 @@ public class PostgreSQLNotifyListener implements SpecificNotifyListener
 			}
 		}
 
+	private void startConsumers() throws SQLException
+		{
+		getKnownTables(); // before the consumers share it
+		for (int i=0; i<channels; i++)
+			{
+			PostgreSQLChannelConsumer consumer = new PostgreSQLChannelConsumer(this, handler, i, pollInterval, maxPollInterval);
+			consumer.connect();
+			consumers.add(consumer);
+			}
+		for (int i=0; i<consumers.size(); i++) {consumers.get(i).start();}
+		}
+
+	public void setNotificationHandler(NotificationHandler h)
+		{
+		handler = h;
+		}
+
+	// Connects without holding our lock, so that sessions draining meanwhile do not wait for the database to answer
+	private void connect() throws SQLException
+		{
+		Connection c = openConnection();
+		// With several channels, this connection is only used for queries, the consumers listen
+		if (channels == 1)
+			{
+			Statement stmt = c.createStatement();
+			stmt.execute("LISTEN oliphant");
+			stmt.close();
+			}
+		synchronized (this)
+			{
+			if (!stopped)
+				{
+				conn = c;
+				pgConn = (PGConnection) c;
+				return;
+				}
+			}
+		c.close(); // torn down while we were connecting
+		}
+
+	Connection openConnection() throws SQLException
+		{
+		return DriverManager.getConnection(config.getProperty("hibernate.connection.url"), config.getProperty("hibernate.connection.username"), config.getProperty("hibernate.connection.password"));
+		}
+
 	public List<Notification> getLatestUpdates()
 		{
-		List<Notification> notifs = new ArrayList<Notification>();
+		NotificationBuffer buffer = new NotificationBuffer();
+		drainUpdates(buffer);
+		List<Notification> notifs = new ArrayList<Notification>(buffer.size());
+		for (int i=0; i<buffer.size(); i++)
+			{
+			notifs.add(new Notification(buffer, i));
+			}
+		return notifs;
+		}
+
+	// With several channels, the consumers push what they receive to the handler
+	public boolean pushesNotifications()
+		{
+		return channels > 1;
+		}
+
+	public int drainUpdates(NotificationBuffer buffer)
+		{
+		// Nothing is added to the buffer, we only wait for a poll of every channel, all of them asked for before waiting for any
+		if (channels > 1)
+			{
+			PostgreSQLChannelConsumer[] current = consumers.toArray(new PostgreSQLChannelConsumer[0]); // cleared by tearDown
+			long[] targets = new long[current.length];
+			for (int i=0; i<current.length; i++) {targets[i] = current[i].requestPoll();}
+			for (int i=0; i<current.length; i++) {current[i].awaitPoll(targets[i]);}
+			return 0;
+			}
+		return drainConnection(buffer);
+		}
 
+	private synchronized int drainConnection(NotificationBuffer buffer)
+		{
+		// While reconnecting, we cannot know about changes. The resync will catch up once we are back.
+		if (reconnectThread != null) {return 0;}
+
+		int count = 0;
 		try
 			{
 			// issue a dummy query to contact the backend and receive any pending notifications.
@@ -86,28 +206,298 @@ public class PostgreSQLNotifyListener implements SpecificNotifyListener
 				{
 				for (int i=0; i<notifications.length; i++)
 					{
-					LOG.debug("Notif from PostgreSQL : "+notifications[i].getParameter());
-					notifs.add(new Notification(notifications[i].getParameter().split("###")));
+					String payload = notifications[i].getParameter();
+					if (LOG.isDebugEnabled()) {LOG.debug("Notif from PostgreSQL : "+payload);}
+					if (buffer.add(payload, getKnownTables())) {count++;}
+					}
+				}
+			}
+		catch (SQLException sqle)
+			{
+			connectionLost(sqle);
+			if (handler != null) {handler.notificationsInterrupted(this);}
+			}
+
+		return count;
+		}
+
+	// Names of the monitored tables, so that notifications can refer to them by position
+	String[] getKnownTables()
+		{
+		if (knownTables == null)
+			{
+			List<String> tables = new ArrayList<String>();
+			for (Iterator i = config.getClassMappings(); i.hasNext();)
+				{
+				PersistentClass c = (PersistentClass) i.next();
+				String tableName = c.getTable().getName().toLowerCase();
+				if (EntityInfo.isMonitored(config, c) && !tables.contains(tableName)) {tables.add(tableName);}
+				}
+			knownTables = tables.toArray(new String[tables.size()]);
+			}
+		return knownTables;
+		}
+
+	long getInitialReconnectDelay()
+		{
+		return initialReconnectDelay;
+		}
+
+	long getMaxReconnectDelay()
+		{
+		return maxReconnectDelay;
+		}
+
+	// Reconnect in the background, so that the session that noticed the failure can go on
+	private synchronized void connectionLost(SQLException cause)
+		{
+		LOG.warn("Lost the PostgreSQL notification connection, reconnecting", cause);
+		closeQuietly();
+		reconnectThread = new Thread("oliphant-reconnect")
+			{
+			public void run()
+				{
+				reconnect();
+				}
+			};
+		reconnectThread.setDaemon(true);
+		reconnectThread.start();
+		}
+
+	private void reconnect()
+		{
+		long delay = initialReconnectDelay;
+		while (true)
+			{
+			try
+				{
+				Thread.sleep(delay);
+				}
+			catch (InterruptedException e)
+				{
+				return; // torn down
+				}
+			if (stopped) {return;}
+			try
+				{
+				connect();
+				if (stopped) {return;}
+				break;
+				}
+			catch (SQLException sqle)
+				{
+				LOG.debug("Reconnection failed, next try in "+delay+" ms", sqle);
+				delay = Math.min(delay * 2, maxReconnectDelay);
+				}
+			}
+		LOG.info("Reconnected the PostgreSQL notification connection");
+		// Notifications sent during the outage are lost, resync before sessions start trusting the registry again
+		try
+			{
+			if (handler != null) {handler.notificationsLost(this);}
+			}
+		catch (RuntimeException e)
+			{
+			LOG.error("Resync after reconnection failed", e);
+			}
+		synchronized (this)
+			{
+			reconnectThread = null;
+			}
+		}
+
+	// On a connection of its own and outside our lock, so that sessions draining notifications do not wait for a resync.
+	// Behind a notification hub, this listener is never set up and the hub lends it a connection instead.
+	public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids)
+		{
+		synchronized (queryLock)
+			{
+			try
+				{
+				if (queryConn == null) {queryConn = openConnection();}
+				return getCurrentVersions(entityName, ids, queryConn);
+				}
+			catch (SQLException sqle)
+				{
+				throw new HibernateException(sqle);
+				}
+			catch (HibernateException e)
+				{
+				closeQueryConnection(); // may be broken, the next query opens another one
+				throw e;
+				}
+			finally
+				{
+				if (stopped) {closeQueryConnection();} // queried after tearDown
+				}
+			}
+		}
+
+	public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids, Connection connection)
+		{
+		Map<String,String> versions = new HashMap<String,String>();
+		String sql = getVersionQuery(entityName);
+		try
+			{
+			PreparedStatement ps = connection.prepareStatement(sql);
+			Iterator<String> i = ids.iterator();
+			while (i.hasNext())
+				{
+				// Send the ids in batches, as an array literal
+				StringBuilder array = new StringBuilder("{");
+				for (int n=0; (n<resyncBatchSize) && i.hasNext(); n++)
+					{
+					if (n>0) {array.append(',');}
+					array.append('"').append(i.next().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
 					}
+				array.append('}');
+				ps.setString(1, array.toString());
+				ResultSet rs = ps.executeQuery();
+				while (rs.next())
+					{
+					versions.put(rs.getString(1), rs.getString(2));
+					}
+				rs.close();
 				}
+			ps.close();
 			}
 		catch (SQLException sqle)
 			{
 			throw new HibernateException(sqle);
 			}
+		return versions;
+		}
 
-		return notifs;
+	// Number of transactions that notified changes, counted by the triggers. A transaction may be counted but not committed yet,
+	// so the count is only returned once the transactions running when it was read are over, their notifications then being
+	// on their way to our connection. Past oliphant.postgresql.watermark_wait, a watermark that matches no other is returned.
+	public String getWatermark()
+		{
+		try
+			{
+			String watermark;
+			long xmax;
+			synchronized (this)
+				{
+				Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT CASE WHEN is_called THEN last_value ELSE 0 END, txid_snapshot_xmax(txid_current_snapshot()) FROM "+PostgreSQLListenerAuxiliary.getSequenceName(config.getProperty("hibernate.default_schema")));
+				rs.next();
+				watermark = rs.getString(1);
+				xmax = rs.getLong(2);
+				rs.close();
+				stmt.close();
+				}
+			long deadline = System.currentTimeMillis() + watermarkWait;
+			while (true)
+				{
+				long xmin;
+				synchronized (this)
+					{
+					Statement stmt = conn.createStatement();
+					ResultSet rs = stmt.executeQuery("SELECT txid_snapshot_xmin(txid_current_snapshot())");
+					rs.next();
+					xmin = rs.getLong(1);
+					rs.close();
+					stmt.close();
+					}
+				if (xmin >= xmax) {return watermark;}
+				if (System.currentTimeMillis() >= deadline)
+					{
+					LOG.info("Transactions still running after "+watermarkWait+" ms, the next start will resynchronize");
+					return "unsettled:"+watermark+":"+System.currentTimeMillis();
+					}
+				Thread.sleep(pollInterval);
+				}
+			}
+		catch (SQLException sqle)
+			{
+			throw new HibernateException(sqle);
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			return "unsettled";
+			}
+		}
+
+	private String getVersionQuery(String entityName)
+		{
+		synchronized (versionQueries)
+			{
+			String sql = versionQueries.get(entityName);
+			if (sql != null) {return sql;}
+			Dialect dialect = Dialect.getDialect(config.getProperties());
+			Mapping mapping = config.buildMapping();
+			PersistentClass c = config.getClassMapping(entityName);
+			Table table = c.getTable();
+			Column idCol = table.getPrimaryKey().getColumn(0);
+			String idColName = idCol.getQuotedName(dialect);
+			// Same version text as the triggers send
+			String version = c.isVersioned() ? ((Column) c.getVersion().getColumnIterator().next()).getQuotedName(dialect)+"::text" : "'"+VersionRegistry.XID_PREFIX+"' || xmin::text";
+			sql = "SELECT "+idColName+"::text, "+version+" FROM "+table.getQualifiedName(dialect, config.getProperty("hibernate.default_catalog"), config.getProperty("hibernate.default_schema"))
+				+" WHERE "+idColName+" = ANY(CAST(? AS "+idCol.getSqlType(dialect, mapping)+"[]))";
+			versionQueries.put(entityName, sql);
+			return sql;
+			}
 		}
 
 	public void tearDown()
 		{
+		Thread reconnecting;
+		synchronized (this)
+			{
+			stopped = true;
+			reconnecting = reconnectThread;
+			}
+		if (reconnecting != null) {reconnecting.interrupt();}
+		for (int i=0; i<consumers.size(); i++) {consumers.get(i).shutdown();}
+		consumers.clear();
+		synchronized (queryLock)
+			{
+			closeQueryConnection();
+			}
 		try
 			{
-			conn.close();
+			synchronized (this)
+				{
+				if (conn != null) {conn.close();}
+				}
 			}
 		catch (SQLException sqle)
 			{
 			throw new HibernateException(sqle);
 			}
 		}
+
+	private void closeQuietly()
+		{
+		try
+			{
+			conn.close();
+			}
+		catch (SQLException sqle)
+			{
+			LOG.debug("Error while closing the lost connection", sqle);
+			}
+		}
+
+	private void closeQueryConnection()
+		{
+		if (queryConn == null) {return;}
+		try
+			{
+			queryConn.close();
+			}
+		catch (SQLException sqle)
+			{
+			LOG.debug("Error while closing the version query connection", sqle);
+			}
+		queryConn = null;
+		}
+
+	private long getLongProperty(String name, long defaultValue)
+		{
+		String value = config.getProperty(name);
+		return (value==null) ? defaultValue : Long.parseLong(value);
+		}
 	}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.replay;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.cfg.Configuration;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotificationBuffer;
+import fr.keyconsulting.oliphant.NotificationHandler;
+import fr.keyconsulting.oliphant.SpecificNotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Notifications read from a recorded trace instead of the database, fed by a TraceReplayer.
+// The current versions of objects are the latest ones replayed so far, so a replay needs no database.
+public class ReplayNotifyListener implements SpecificNotifyListener
+	{
+	private static final String SEPARATOR = "###";
+	private static final String[] NO_TABLES = new String[0];
+
+	private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+	private final Map<String,String> currentVersions = new ConcurrentHashMap<String,String>(); // Maps UIDs to the latest replayed version
+	private final AtomicLong sequence = new AtomicLong(); // Number of notifications replayed so far
+	private Configuration config;
+
+	// Called by the replayer when the trace reaches a notification
+	public void offer(String payload)
+		{
+		int opSep = payload.lastIndexOf(SEPARATOR, payload.lastIndexOf(SEPARATOR)-1);
+		int versionSep = payload.lastIndexOf(SEPARATOR, opSep-1);
+		String uid = payload.substring(0, versionSep);
+		Notification.Operation operation = Notification.Operation.fromCode(payload.charAt(opSep + SEPARATOR.length()));
+		if (operation == Notification.Operation.DELETE) {currentVersions.remove(uid);}
+		else if (operation != Notification.Operation.COLLECTION) {currentVersions.put(uid, payload.substring(versionSep + SEPARATOR.length(), opSep));}
+		sequence.incrementAndGet();
+		pending.add(payload);
+		}
+
+	public void prepare(Configuration cfg)
+		{
+		config = cfg;
+		}
+
+	public void setUp()
+		{
+		// the replayer starts feeding us
+		}
+
+	public void setNotificationHandler(NotificationHandler handler)
+		{
+		// a replay never loses notifications
+		}
+
+	public List<Notification> getLatestUpdates()
+		{
+		NotificationBuffer buffer = new NotificationBuffer();
+		drainUpdates(buffer);
+		List<Notification> notifs = new ArrayList<Notification>(buffer.size());
+		for (int i=0; i<buffer.size(); i++)
+			{
+			notifs.add(new Notification(buffer, i));
+			}
+		return notifs;
+		}
+
+	public boolean pushesNotifications()
+		{
+		return false;
+		}
+
+	public int drainUpdates(NotificationBuffer buffer)
+		{
+		int count = 0;
+		String payload;
+		while ((payload = pending.poll()) != null)
+			{
+			if (buffer.add(payload, NO_TABLES)) {count++;}
+			}
+		return count;
+		}
+
+	public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids)
+		{
+		String tableName = config.getClassMapping(entityName).getTable().getName().toLowerCase();
+		Map<String,String> versions = new HashMap<String,String>();
+		for (Iterator<String> i = ids.iterator(); i.hasNext();)
+			{
+			String id = i.next();
+			String version = currentVersions.get(VersionRegistry.getUid(tableName, id));
+			if (version != null) {versions.put(id, version);}
+			}
+		return versions;
+		}
+
+	// No database behind a replay
+	public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids, Connection connection)
+		{
+		return getCurrentVersions(entityName, ids);
+		}
+
+	public String getWatermark()
+		{
+		return String.valueOf(sequence.get());
+		}
+
+	public void tearDown()
+		{
+		pending.clear();
+		}
+	}
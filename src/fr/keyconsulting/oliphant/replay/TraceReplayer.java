@@ -0,0 +1,103 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.replay;
+
+import org.hibernate.HibernateException;
+
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.TraceReader;
+import fr.keyconsulting.oliphant.TraceRecorder;
+
+// Feeds a recorded trace back through a NotifyListener whose specific listener is a ReplayNotifyListener.
+// Notifications are queued as they were received, and events are checked against them as the event listeners would.
+public class TraceReplayer
+	{
+	private final NotifyListener listener;
+	private final ReplayNotifyListener source;
+	private long notificationCount = 0;
+	private long eventCount = 0;
+	private long staleCount = 0;
+
+	public TraceReplayer(NotifyListener listener)
+		{
+		if (!(listener.getSpecificNotifyListener() instanceof ReplayNotifyListener))
+			{
+			throw new HibernateException("Traces can only be replayed with oliphant.specific_listener set to "+ReplayNotifyListener.class.getName());
+			}
+		this.listener = listener;
+		this.source = (ReplayNotifyListener) listener.getSpecificNotifyListener();
+		}
+
+	// A speed of 1 keeps the recorded pace, 10 replays ten times faster, 0 or less as fast as possible.
+	// Returns the time taken, in nanoseconds.
+	public long replay(String fileName, double speed) throws InterruptedException
+		{
+		TraceReader reader = new TraceReader(fileName);
+		long start = System.nanoTime();
+		try
+			{
+			while (reader.next())
+				{
+				if (speed > 0)
+					{
+					long wait = (long) (reader.getTime() * 1000 / speed) - (System.nanoTime() - start);
+					if (wait > 1000000)
+						{
+						listener.drainNotifications(); // apply what arrived before the gap now, as a consumer thread would, rather than at the next event
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+						}
+					}
+				if (reader.getType() == TraceRecorder.NOTIFICATION)
+					{
+					source.offer(reader.getPayload());
+					notificationCount++;
+					}
+				else
+					{
+					if (listener.replayEvent(reader.getType(), reader.getTableName(), reader.getId(), reader.getVersion())) {staleCount++;}
+					eventCount++;
+					}
+				}
+			listener.drainNotifications();
+			}
+		finally
+			{
+			reader.close();
+			}
+		return System.nanoTime() - start;
+		}
+
+	public long getNotificationCount()
+		{
+		return notificationCount;
+		}
+
+	public long getEventCount()
+		{
+		return eventCount;
+		}
+
+	public long getStaleCount()
+		{
+		return staleCount;
+		}
+	}
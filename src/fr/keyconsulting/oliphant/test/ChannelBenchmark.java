@@ -0,0 +1,143 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.event.EventSource;
+
+import fr.keyconsulting.oliphant.NotifyListener;
+
+// Measures how many notifications per second reach the version registry, for an increasing number of notification channels
+public class ChannelBenchmark
+	{
+	private final int NB_ROWS = 5000;
+	private final int NB_WRITERS = 8;
+	private final int NB_UPDATES = 5000; // per writer
+
+	private SessionFactory sessionFactory;
+	private NotifyListener listener;
+
+	public void setUp(int channels) throws SQLException
+		{
+		AnnotationConfiguration config = new AnnotationConfiguration();
+		config.setProperty("hibernate.dialect", "org.hibernate.dialect.PostgreSQLDialect");
+		config.setProperty("hibernate.connection.driver_class", "org.postgresql.Driver");
+		config.setProperty("hibernate.connection.url", "jdbc:postgresql://localhost/hibernate");
+		config.setProperty("hibernate.connection.username", "hibernate");
+		config.setProperty("hibernate.connection.password", "hibernate333");
+		config.setProperty("hibernate.connection.pool_size", "1");
+		config.setProperty("hibernate.hbm2ddl.auto", "create-drop");
+		config.setProperty("hibernate.cache.use_second_level_cache", "false");
+		config.setProperty("hibernate.transaction.factory_class", "org.hibernate.transaction.JDBCTransactionFactory");
+		config.setProperty("oliphant.specific_listener", "fr.keyconsulting.oliphant.postgresql.PostgreSQLNotifyListener");
+		config.setProperty("oliphant.hotspots.enabled", "true");
+		config.setProperty("oliphant.postgresql.channels", String.valueOf(channels));
+		config.setProperty("oliphant.eager_start", "true");
+		config.addAnnotatedClass(PersistentVersionedObject.class);
+		listener = NotifyListener.attachListener(config);
+		// Building the session factory creates the table and its triggers
+		sessionFactory = config.buildSessionFactory();
+
+		Connection conn = Utils.getJDBCConnection();
+		Statement st = conn.createStatement();
+		st.executeUpdate("ALTER TABLE persistentversionedobject DISABLE TRIGGER USER");
+		st.executeUpdate("INSERT INTO persistentversionedobject (id, version, champstring, champlong) SELECT i, 0, 'valeur string', 1 FROM generate_series(0, "+(NB_ROWS-1)+") AS i");
+		st.executeUpdate("ALTER TABLE persistentversionedobject ENABLE TRIGGER USER");
+		st.close();
+		conn.close();
+		}
+
+	public void tearDown()
+		{
+		sessionFactory.close();
+		}
+
+	// Returns the number of notifications applied to the registry per second, while writers update rows in parallel
+	public double run() throws Exception
+		{
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int w=0; w<NB_WRITERS; w++)
+			{
+			final int first = w;
+			writers.add(new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						Connection conn = Utils.getJDBCConnection();
+						PreparedStatement ps = conn.prepareStatement("UPDATE persistentversionedobject SET version=version+1 WHERE id=?");
+						for (int n=0; n<NB_UPDATES; n++)
+							{
+							ps.setLong(1, (first + (long) n * NB_WRITERS) % NB_ROWS);
+							ps.executeUpdate();
+							}
+						ps.close();
+						conn.close();
+						}
+					catch (Throwable t)
+						{
+						synchronized (errors) {errors.add(t);}
+						}
+					}
+				});
+			}
+
+		// With a single channel, notifications are only drained when sessions check objects
+		Session session = sessionFactory.openSession();
+		Object o = session.get(PersistentVersionedObject.class, Long.valueOf(0));
+		long expected = listener.getChangeTracker().getTotal() + (long) NB_WRITERS * NB_UPDATES;
+		long start = System.nanoTime();
+		for (int i=0; i<writers.size(); i++) {writers.get(i).start();}
+		while (listener.getChangeTracker().getTotal() < expected)
+			{
+			listener.isKnownToBeStaleInSession(o, (EventSource) session);
+			if (!errors.isEmpty()) {throw new AssertionError(errors.get(0));}
+			}
+		long elapsed = System.nanoTime() - start;
+		for (int i=0; i<writers.size(); i++) {writers.get(i).join();}
+		session.close();
+		return (double) NB_WRITERS * NB_UPDATES / (elapsed / 1000000000.0);
+		}
+
+	public static void main(String[] args) throws Exception
+		{
+		int[] channelCounts = {1, 2, 4, 8};
+		for (int i=0; i<channelCounts.length; i++)
+			{
+			ChannelBenchmark test = new ChannelBenchmark();
+			test.setUp(channelCounts[i]);
+			double rate = test.run();
+			test.tearDown();
+			System.out.println("=== "+channelCounts[i]+" channel(s) : "+rate+" notifications/s ===");
+			}
+		}
+	}
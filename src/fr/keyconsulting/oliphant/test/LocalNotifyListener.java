@@ -0,0 +1,207 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.mapping.Table;
+import org.hibernate.type.NullableType;
+import org.hibernate.type.Type;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotificationBuffer;
+import fr.keyconsulting.oliphant.NotificationHandler;
+import fr.keyconsulting.oliphant.SpecificNotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Notifications published from within the JVM instead of database triggers, for the tests.
+// Every listener that is set up receives the changes published after it, like a LISTEN on a channel.
+public class LocalNotifyListener implements SpecificNotifyListener
+	{
+	private static final List<LocalNotifyListener> subscribers = new CopyOnWriteArrayList<LocalNotifyListener>();
+	private static final AtomicLong sequence = new AtomicLong(); // Number of changes published so far
+	private static volatile boolean disconnected = false; // Changes published while disconnected are lost
+	private static final String[] NO_TABLES = new String[0];
+
+	private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+	private Configuration config;
+	private NotificationHandler handler;
+
+	// Call this once a change is committed, as a trigger would
+	public static void publish(String tableName, String id, String version, Notification.Operation operation)
+		{
+		long txid = sequence.incrementAndGet();
+		if (operation == Notification.Operation.DELETE) {version = VersionRegistry.DELETED;}
+		String payload = tableName.toLowerCase()+"#"+id+"###"+version+"###"+operation.getCode()+"###"+txid;
+		if (disconnected) {return;}
+		for (Iterator<LocalNotifyListener> i = subscribers.iterator(); i.hasNext();)
+			{
+			i.next().pending.add(payload);
+			}
+		}
+
+	public void prepare(Configuration cfg)
+		{
+		config = cfg;
+		}
+
+	public void setUp()
+		{
+		subscribers.add(this);
+		}
+
+	// Simulates the loss of the notification connection of every listener, for tests of the resynchronization
+	public static void disconnect()
+		{
+		disconnected = true;
+		for (Iterator<LocalNotifyListener> i = subscribers.iterator(); i.hasNext();)
+			{
+			LocalNotifyListener listener = i.next();
+			if (listener.handler != null) {listener.handler.notificationsInterrupted(listener);}
+			}
+		}
+
+	// Like a listener reconnecting, tells the handlers that notifications may have been lost
+	public static void reconnect()
+		{
+		disconnected = false;
+		for (Iterator<LocalNotifyListener> i = subscribers.iterator(); i.hasNext();)
+			{
+			LocalNotifyListener listener = i.next();
+			if (listener.handler != null) {listener.handler.notificationsLost(listener);}
+			}
+		}
+
+	public void setNotificationHandler(NotificationHandler h)
+		{
+		handler = h;
+		}
+
+	public List<Notification> getLatestUpdates()
+		{
+		NotificationBuffer buffer = new NotificationBuffer();
+		drainUpdates(buffer);
+		List<Notification> notifs = new ArrayList<Notification>(buffer.size());
+		for (int i=0; i<buffer.size(); i++)
+			{
+			notifs.add(new Notification(buffer, i));
+			}
+		return notifs;
+		}
+
+	public boolean pushesNotifications()
+		{
+		return false;
+		}
+
+	public int drainUpdates(NotificationBuffer buffer)
+		{
+		int count = 0;
+		String payload;
+		while ((payload = pending.poll()) != null)
+			{
+			if (buffer.add(payload, NO_TABLES)) {count++;}
+			}
+		return count;
+		}
+
+	public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids)
+		{
+		try
+			{
+			Connection conn = DriverManager.getConnection(config.getProperty("hibernate.connection.url"), config.getProperty("hibernate.connection.username"), config.getProperty("hibernate.connection.password"));
+			try
+				{
+				return getCurrentVersions(entityName, ids, conn);
+				}
+			finally
+				{
+				conn.close();
+				}
+			}
+		catch (SQLException sqle)
+			{
+			throw new HibernateException(sqle);
+			}
+		}
+
+	public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids, Connection conn)
+		{
+		Map<String,String> versions = new HashMap<String,String>();
+		Dialect dialect = Dialect.getDialect(config.getProperties());
+		PersistentClass c = config.getClassMapping(entityName);
+		Table table = c.getTable();
+		String idColName = table.getPrimaryKey().getColumn(0).getQuotedName(dialect);
+		String verColName = ((Column) c.getVersion().getColumnIterator().next()).getQuotedName(dialect);
+		String sql = "SELECT "+verColName+" FROM "+table.getQualifiedName(dialect, config.getProperty("hibernate.default_catalog"), config.getProperty("hibernate.default_schema"))+" WHERE "+idColName+" = ?";
+		Type idType = c.getIdentifier().getType();
+		try
+			{
+			PreparedStatement ps = conn.prepareStatement(sql);
+			for (Iterator<String> i = ids.iterator(); i.hasNext();)
+				{
+				String id = i.next();
+				if (idType instanceof NullableType) {ps.setObject(1, ((NullableType) idType).fromStringValue(id));}
+				else {ps.setString(1, id);}
+				ResultSet rs = ps.executeQuery();
+				if (rs.next()) {versions.put(id, rs.getString(1));}
+				rs.close();
+				}
+			ps.close();
+			}
+		catch (SQLException sqle)
+			{
+			throw new HibernateException(sqle);
+			}
+		return versions;
+		}
+
+	public String getWatermark()
+		{
+		return String.valueOf(sequence.get());
+		}
+
+	public void tearDown()
+		{
+		subscribers.remove(this);
+		pending.clear();
+		}
+	}
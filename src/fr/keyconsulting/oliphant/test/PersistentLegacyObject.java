@@ -0,0 +1,54 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+package fr.keyconsulting.oliphant.test;
+import javax.persistence.Column;
+import javax.persistence.Id;
+import javax.persistence.Entity;
+
+@Entity
+
+public class PersistentLegacyObject {
+
+	private long id;
+	private Long xmin;
+	private String champString;
+
+	@Id
+	public long getId() {
+		return id;
+	}
+	public void setId(long id) {
+		this.id = id;
+	}
+	@Column(name="xmin", insertable=false, updatable=false)
+	public Long getXmin() {
+		return xmin;
+	}
+	public void setXmin(Long xmin) {
+		this.xmin = xmin;
+	}
+	public String getChampString() {
+		return champString;
+	}
+	public void setChampString(String a) {
+		this.champString = a;
+	}
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+ 
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+ 
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+ 
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.util.HashSet;
+import java.util.Set;
+import javax.persistence.Id;
+import javax.persistence.Entity;
+import javax.persistence.OneToMany;
+import javax.persistence.Version;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+@Entity
+@Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
+
+public class PersistentParent {
+
+	private long id;
+	private long version;
+	private Set<PersistentChild> children = new HashSet<PersistentChild>();
+
+	@Id
+	public long getId() {
+		return id;
+	}
+	public void setId(long id) {
+		this.id = id;
+	}
+	@Version
+	public long getVersion() {
+		return version;
+	}
+	public void setVersion(long version) {
+		this.version = version;
+	}
+	@OneToMany(mappedBy="parent")
+	@Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
+	public Set<PersistentChild> getChildren() {
+		return children;
+	}
+	public void setChildren(Set<PersistentChild> children) {
+		this.children = children;
+	}
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.replay.TraceReplayer;
+
+// Replays a trace recorded with oliphant.record.file, to measure the registry against a real workload without a database.
+// Arguments : the trace file, then the speed (1 for the recorded pace, 0 for as fast as possible, the default).
+public class ReplayBenchmark
+	{
+	public static void main(String[] args) throws Exception
+		{
+		if (args.length < 1)
+			{
+			System.err.println("Usage : ReplayBenchmark <trace file> [speed]");
+			return;
+			}
+		double speed = (args.length > 1) ? Double.parseDouble(args[1]) : 0;
+
+		// Hibernate wants a database, an empty in-memory one will do
+		AnnotationConfiguration config = Utils.getLocalConfig("jdbc:hsqldb:mem:replay", null, false);
+		config.setProperty("oliphant.specific_listener", "fr.keyconsulting.oliphant.replay.ReplayNotifyListener");
+		config.setProperty("oliphant.hotspots.enabled", "true");
+		config.setProperty("oliphant.allow_stale_load", System.getProperty("oliphant.allow_stale_load", "true"));
+		NotifyListener listener = NotifyListener.attachListener(config);
+		SessionFactory sessionFactory = config.buildSessionFactory();
+
+		TraceReplayer replayer = new TraceReplayer(listener);
+		long elapsed = replayer.replay(args[0], speed);
+		sessionFactory.close();
+
+		double seconds = elapsed / 1000000000.0;
+		System.out.println("=== "+replayer.getNotificationCount()+" notifications and "+replayer.getEventCount()+" events replayed in "+seconds+" s ("
+			+((replayer.getNotificationCount() + replayer.getEventCount()) / seconds)+" records/s), "+replayer.getStaleCount()+" stale objects ===");
+		System.out.println("=== Registry : "+listener.getRegistry().size()+" objects, filter "+listener.getRegistry().getFilter()+" ===");
+		System.out.println("=== Most changed : "+listener.getChangeTracker().getTop()+" ===");
+		}
+	}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Measures the cost of the Oliphant triggers on the write path, with plain JDBC updates
+public class TriggerBenchmark
+	{
+	private Connection conn;
+	private final int NB_ROWS = 5000;
+	private final int NB_RUNS = 5;
+
+	public void setUp() throws SQLException
+		{
+		// Building the session factory creates the table and its triggers
+		Utils.getMagicSessionFactory();
+		conn = Utils.getJDBCConnection();
+		conn.setAutoCommit(false);
+
+		Statement st = conn.createStatement();
+		st.executeUpdate("DELETE FROM persistentversionedobject");
+		st.executeUpdate("INSERT INTO persistentversionedobject (id, version, champstring, champlong) SELECT i, 0, 'valeur string', 1 FROM generate_series(0, "+(NB_ROWS-1)+") AS i");
+		st.close();
+		conn.commit();
+		}
+
+	public void setTriggersEnabled(boolean enabled) throws SQLException
+		{
+		Statement st = conn.createStatement();
+		st.executeUpdate("ALTER TABLE persistentversionedobject "+(enabled ? "ENABLE" : "DISABLE")+" TRIGGER USER");
+		st.close();
+		conn.commit();
+		}
+
+	// Returns the average time per updated row, in microseconds
+	public double update(String sql) throws SQLException
+		{
+		long best = Long.MAX_VALUE;
+		PreparedStatement ps = conn.prepareStatement(sql);
+		for (int run=0; run<NB_RUNS; run++)
+			{
+			long start = System.nanoTime();
+			for (long i=0; i<NB_ROWS; i++)
+				{
+				ps.setLong(1, i);
+				ps.executeUpdate();
+				}
+			conn.commit();
+			best = Math.min(best, System.nanoTime() - start);
+			}
+		ps.close();
+		return best / 1000.0 / NB_ROWS;
+		}
+
+	public static void main(String[] args) throws Exception
+		{
+		TriggerBenchmark test = new TriggerBenchmark();
+		test.setUp();
+
+		String versionUpdate = "UPDATE persistentversionedobject SET version=version+1, champstring='valeur 2' WHERE id=?";
+		String otherUpdate = "UPDATE persistentversionedobject SET champlong=champlong+1 WHERE id=?";
+
+		test.setTriggersEnabled(false);
+		double versionNoTrigger = test.update(versionUpdate);
+		double otherNoTrigger = test.update(otherUpdate);
+
+		test.setTriggersEnabled(true);
+		double versionTrigger = test.update(versionUpdate);
+		double otherTrigger = test.update(otherUpdate);
+
+		System.out.println("=== Versioned update : "+versionNoTrigger+" us/row without trigger, "+versionTrigger+" us/row with trigger -> overhead = "+(versionTrigger-versionNoTrigger)+" us/row ===");
+		System.out.println("=== Unversioned update : "+otherNoTrigger+" us/row without trigger, "+otherTrigger+" us/row with trigger -> overhead = "+(otherTrigger-otherNoTrigger)+" us/row ===");
+		}
+	}
@@ -22,6 +22,7 @@
 package fr.keyconsulting.oliphant.test;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 import org.hibernate.SessionFactory;
@@ -37,47 +38,96 @@ public class Utils
 		return DriverManager.getConnection(url);
 		}
 	
-	private static final SessionFactory sessionFactory;
-	private static final SessionFactory magicSessionFactory;
-	private static final AnnotationConfiguration config;
-	private static final AnnotationConfiguration magicConfig;
-	static
+	// Built on first use, so that the tests on HSQLDB run without a PostgreSQL server
+	private static class PostgreSQLFactories
 		{
-		try
-			{
-			config = new AnnotationConfiguration();
-			fillConfig(config);
-			sessionFactory = config.buildSessionFactory();
-			magicConfig = new AnnotationConfiguration();
-			fillConfig(magicConfig);
-			NotifyListener.attachListener(magicConfig);
-			magicSessionFactory = magicConfig.buildSessionFactory();
-			}
-		catch (Throwable ex)
+		private static final SessionFactory sessionFactory;
+		private static final SessionFactory magicSessionFactory;
+		private static final AnnotationConfiguration config;
+		private static final AnnotationConfiguration magicConfig;
+		static
 			{
-			System.err.println("Initial SessionFactory creation failed." + ex);
-			throw new ExceptionInInitializerError(ex);
+			try
+				{
+				config = new AnnotationConfiguration();
+				fillConfig(config);
+				sessionFactory = config.buildSessionFactory();
+				magicConfig = new AnnotationConfiguration();
+				fillConfig(magicConfig);
+				NotifyListener.attachListener(magicConfig);
+				magicSessionFactory = magicConfig.buildSessionFactory();
+				}
+			catch (Throwable ex)
+				{
+				System.err.println("Initial SessionFactory creation failed." + ex);
+				throw new ExceptionInInitializerError(ex);
+				}
 			}
 		}
 
 	public static AnnotationConfiguration getConfig()
 		{
-		return config;
+		return PostgreSQLFactories.config;
 		}
 
 	public static AnnotationConfiguration getMagicConfig()
 		{
-		return magicConfig;
+		return PostgreSQLFactories.magicConfig;
 		}
 	
 	public static SessionFactory getSessionFactory()
 		{
-		return sessionFactory;
+		return PostgreSQLFactories.sessionFactory;
 		}
 
 	public static SessionFactory getMagicSessionFactory()
 		{
-		return magicSessionFactory;
+		return PostgreSQLFactories.magicSessionFactory;
+		}
+
+	// In-memory HSQLDB database, with notifications published through LocalNotifyListener.
+	// The schema is left alone if hbm2ddl is null, and the L2 cache is only enabled if cached.
+	public static AnnotationConfiguration getLocalConfig(String url, String hbm2ddl, boolean cached)
+		{
+		AnnotationConfiguration config = new AnnotationConfiguration();
+		config.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect");
+		config.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver");
+		config.setProperty("hibernate.connection.url", url);
+		config.setProperty("hibernate.connection.username", "sa");
+		config.setProperty("hibernate.connection.password", "");
+		if (hbm2ddl != null) {config.setProperty("hibernate.hbm2ddl.auto", hbm2ddl);}
+		config.setProperty("hibernate.cache.use_second_level_cache", String.valueOf(cached));
+		if (cached) {config.setProperty("hibernate.cache.provider_class", "org.hibernate.cache.EhCacheProvider");}
+		config.setProperty("hibernate.transaction.factory_class", "org.hibernate.transaction.JDBCTransactionFactory");
+		config.setProperty("oliphant.specific_listener", LocalNotifyListener.class.getName());
+		config.setProperty("oliphant.eager_start", "true");
+		config.addAnnotatedClass(PersistentVersionedObject.class);
+		return config;
+		}
+
+	public static Connection getLocalConnection(String url) throws SQLException
+		{
+		try
+			{
+			Class.forName("org.hsqldb.jdbcDriver");
+			}
+		catch (ClassNotFoundException e)
+			{
+			throw new SQLException(e.toString());
+			}
+		return DriverManager.getConnection(url, "sa", "");
+		}
+
+	// Versioned objects first to last, at version 0
+	public static void insertObjects(Connection conn, long first, long last) throws SQLException
+		{
+		PreparedStatement ps = conn.prepareStatement("INSERT INTO persistentversionedobject (id, version, champString, champLong) VALUES (?, 0, 'valeur string', 1)");
+		for (long id=first; id<=last; id++)
+			{
+			ps.setLong(1, id);
+			ps.executeUpdate();
+			}
+		ps.close();
 		}
 	
 	private static void fillConfig(AnnotationConfiguration config)
@@ -0,0 +1,118 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.CollectionInfo;
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Cached collections evicted when another node changes their rows, on an in-memory HSQLDB database
+public class collectionTests
+	{
+	private static final String URL = "jdbc:hsqldb:mem:collections";
+	private static final String ROLE = PersistentParent.class.getName()+".children";
+
+	private AnnotationConfiguration config;
+	private SessionFactory sessionFactory;
+	private NotifyListener listener;
+	private Connection conn;
+
+	@Before
+	public void setUp() throws SQLException
+		{
+		config = Utils.getLocalConfig(URL, "create-drop", true);
+		config.setProperty("oliphant.hotspots.enabled", "true");
+		config.addAnnotatedClass(PersistentParent.class);
+		config.addAnnotatedClass(PersistentChild.class);
+		listener = NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+
+		conn = Utils.getLocalConnection(URL);
+		Statement st = conn.createStatement();
+		st.executeUpdate("INSERT INTO persistentparent (id, version) VALUES (1, 0)");
+		st.executeUpdate("INSERT INTO persistentchild (id, version, parent_id) VALUES (1, 0, 1)");
+		st.close();
+		}
+
+	@After
+	public void tearDown() throws SQLException
+		{
+		conn.close();
+		sessionFactory.close();
+		}
+
+	@Test
+	public void testTrackedCollections()
+		{
+		assertTrue(CollectionInfo.isTracked(config, config.getCollectionMapping(ROLE)));
+		assertEquals("persistentchild.parent_id", CollectionInfo.getKey(config.getCollectionMapping(ROLE)));
+		config.setProperty("oliphant.collections.enabled", "false");
+		assertFalse(CollectionInfo.isTracked(config, config.getCollectionMapping(ROLE)));
+		}
+
+	@Test
+	public void testCollectionEvicted() throws SQLException
+		{
+		assertEquals(1, countChildren());
+		Statement st = conn.createStatement();
+		st.executeUpdate("INSERT INTO persistentchild (id, version, parent_id) VALUES (2, 0, 1)");
+		st.close();
+		assertEquals(1, countChildren()); // from the L2 cache, stale
+
+		LocalNotifyListener.publish(CollectionInfo.getKey(config.getCollectionMapping(ROLE)), "1", "-1", Notification.Operation.COLLECTION);
+		listener.drainNotifications();
+		assertEquals(2, countChildren());
+		assertEquals(0, listener.getChangeTracker().getTotal()); // not an object
+		assertNull(listener.getRegistry().get(VersionRegistry.getUid(CollectionInfo.getKey(config.getCollectionMapping(ROLE)), "1"))); // collections have no version
+		}
+
+	private int countChildren()
+		{
+		Session session = sessionFactory.openSession();
+		try
+			{
+			PersistentParent parent = (PersistentParent) session.get(PersistentParent.class, Long.valueOf(1));
+			return parent.getChildren().size();
+			}
+		finally
+			{
+			session.close();
+			}
+		}
+	}
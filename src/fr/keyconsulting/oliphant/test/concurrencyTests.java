@@ -0,0 +1,241 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotifyListener;
+
+// Many sessions updating many rows at once, while a writer changes the same rows behind Hibernate's back.
+// Runs on an in-memory HSQLDB database, changes being published through the local notifier instead of triggers.
+public class concurrencyTests
+	{
+	private static final String URL = "jdbc:hsqldb:mem:oliphant";
+	private static final String TABLE = "persistentversionedobject";
+	private final int NB_ROWS = 50;
+	private final int NB_SESSION_THREADS = 4;
+	private final int NB_TRANSACTIONS = 500; // per session thread
+
+	private SessionFactory sessionFactory;
+	private NotifyListener listener;
+	private AtomicLongArray published; // Latest version published for each row
+
+	private final AtomicLong committed = new AtomicLong();
+	private final AtomicLong detected = new AtomicLong(); // stale objects rejected by Oliphant
+	private final AtomicLong falsePositives = new AtomicLong(); // objects rejected by Oliphant that were not stale
+	private final AtomicLong missed = new AtomicLong(); // stale objects only caught by Hibernate, although their change had been published
+	private final AtomicLong unpublished = new AtomicLong(); // stale objects caught by Hibernate before their change was published
+
+	@Before
+	public void setUp() throws SQLException
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig(URL, "create-drop", false);
+		config.setProperty("hibernate.connection.pool_size", String.valueOf(NB_SESSION_THREADS + 1));
+		config.setProperty("oliphant.hotspots.enabled", "true");
+		config.setProperty("oliphant.allow_stale_load", "true");
+		listener = NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+
+		Connection conn = getConnection();
+		Utils.insertObjects(conn, 0, NB_ROWS-1);
+		conn.close();
+		published = new AtomicLongArray(NB_ROWS);
+		}
+
+	@After
+	public void tearDown()
+		{
+		sessionFactory.close();
+		}
+
+	@Test
+	public void testConcurrentSessions() throws Exception
+		{
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		Thread writer = new Thread()
+			{
+			public void run()
+				{
+				try
+					{
+					Random random = new Random(0);
+					Connection conn = getConnection();
+					while (running.get())
+						{
+						int row = random.nextInt(NB_ROWS);
+						long version = getVersion(conn, row);
+						PreparedStatement ps = conn.prepareStatement("UPDATE "+TABLE+" SET version=?, champLong=champLong+1 WHERE id=? AND version=?");
+						ps.setLong(1, version+1);
+						ps.setLong(2, row);
+						ps.setLong(3, version);
+						if (ps.executeUpdate() == 1) {publish(row, version+1);}
+						ps.close();
+						Thread.sleep(1);
+						}
+					conn.close();
+					}
+				catch (Throwable t)
+					{
+					synchronized (errors) {errors.add(t);}
+					}
+				}
+			};
+
+		List<Thread> sessionThreads = new ArrayList<Thread>();
+		for (int t=0; t<NB_SESSION_THREADS; t++)
+			{
+			final Random random = new Random(100 + t);
+			sessionThreads.add(new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						for (int n=0; n<NB_TRANSACTIONS; n++)
+							{
+							runTransaction(random.nextInt(NB_ROWS), random.nextBoolean());
+							}
+						}
+					catch (Throwable t)
+						{
+						synchronized (errors) {errors.add(t);}
+						}
+					}
+				});
+			}
+
+		writer.start();
+		for (int i=0; i<sessionThreads.size(); i++) {sessionThreads.get(i).start();}
+		for (int i=0; i<sessionThreads.size(); i++) {sessionThreads.get(i).join();}
+		running.set(false);
+		writer.join();
+
+		System.out.println("=== "+committed.get()+" commits, "+detected.get()+" stale objects detected, "+falsePositives.get()+" false positives, "
+			+missed.get()+" missed, "+unpublished.get()+" caught before their change was published ===");
+		if (!errors.isEmpty()) {throw new AssertionError(errors.get(0));}
+		assertEquals(NB_SESSION_THREADS * NB_TRANSACTIONS, committed.get() + detected.get() + falsePositives.get() + missed.get() + unpublished.get());
+		assertEquals(0, falsePositives.get());
+		assertEquals(0, missed.get());
+		assertTrue(detected.get() > 0);
+		assertEquals(detected.get(), listener.getStaleTracker().getTotal());
+		}
+
+	// Load a row, give the writer a chance to change it, then update it, either with an explicit persist or at commit
+	private void runTransaction(int row, boolean persist) throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		Transaction tx = session.beginTransaction();
+		long loaded = -1;
+		long publishedBeforeCheck = -1;
+		try
+			{
+			PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(row));
+			loaded = o.getVersion();
+			Thread.sleep(1);
+			o.setChampLong(Long.valueOf(o.getChampLong().longValue() + 1));
+			publishedBeforeCheck = published.get(row);
+			if (persist) {session.persist(o);}
+			tx.commit();
+			committed.incrementAndGet();
+			publish(row, o.getVersion());
+			}
+		catch (StaleObjectStateException e)
+			{
+			tx.rollback();
+			// Each stale object gives a single exception, the transaction stops there
+			if (isFromOliphant(e))
+				{
+				Connection conn = getConnection();
+				// Versions only grow, if the row still has the loaded version it was never stale
+				if (getVersion(conn, row) == loaded) {falsePositives.incrementAndGet();}
+				else {detected.incrementAndGet();}
+				conn.close();
+				}
+			else if (publishedBeforeCheck > loaded) {missed.incrementAndGet();}
+			else {unpublished.incrementAndGet();}
+			}
+		finally
+			{
+			session.close();
+			}
+		}
+
+	private static boolean isFromOliphant(StaleObjectStateException e)
+		{
+		StackTraceElement[] trace = e.getStackTrace();
+		for (int i=0; i<trace.length; i++)
+			{
+			if (trace[i].getClassName().equals(NotifyListener.class.getName())) {return true;}
+			}
+		return false;
+		}
+
+	private void publish(int row, long version)
+		{
+		synchronized (published)
+			{
+			LocalNotifyListener.publish(TABLE, String.valueOf(row), String.valueOf(version), Notification.Operation.UPDATE);
+			if (version > published.get(row)) {published.set(row, version);}
+			}
+		}
+
+	private static Connection getConnection() throws SQLException
+		{
+		return Utils.getLocalConnection(URL);
+		}
+
+	private static long getVersion(Connection conn, int row) throws SQLException
+		{
+		PreparedStatement ps = conn.prepareStatement("SELECT version FROM "+TABLE+" WHERE id=?");
+		ps.setLong(1, row);
+		ResultSet rs = ps.executeQuery();
+		rs.next();
+		long version = rs.getLong(1);
+		rs.close();
+		ps.close();
+		return version;
+		}
+	}
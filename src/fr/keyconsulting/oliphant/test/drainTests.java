@@ -0,0 +1,151 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotificationBuffer;
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Updates going through the listener, and notifications drained by several threads at once
+public class drainTests
+	{
+	private static final String URL = "jdbc:hsqldb:mem:drain";
+	private static final String TABLE = "persistentversionedobject";
+
+	private static CountDownLatch drained; // Counted down once the blocking listener holds notifications it has not handed back yet
+	private static CountDownLatch release;
+
+	// Stops the first drain that gets notifications until the test releases it, as a thread descheduled before applying them would
+	public static class BlockingNotifyListener extends LocalNotifyListener
+		{
+		public int drainUpdates(NotificationBuffer buffer)
+			{
+			int count = super.drainUpdates(buffer);
+			if ((count > 0) && (drained.getCount() > 0))
+				{
+				drained.countDown();
+				try
+					{
+					release.await();
+					}
+				catch (InterruptedException e)
+					{
+					Thread.currentThread().interrupt();
+					}
+				}
+			return count;
+			}
+		}
+
+	private SessionFactory sessionFactory;
+	private NotifyListener listener;
+	private Connection conn;
+
+	@Before
+	public void setUp() throws Exception
+		{
+		drained = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+		AnnotationConfiguration config = Utils.getLocalConfig(URL, "create-drop", false);
+		config.setProperty("oliphant.specific_listener", BlockingNotifyListener.class.getName());
+		listener = NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+		conn = Utils.getLocalConnection(URL);
+		Utils.insertObjects(conn, 1, 1);
+		}
+
+	@After
+	public void tearDown() throws Exception
+		{
+		release.countDown();
+		conn.close();
+		sessionFactory.close();
+		}
+
+	// The pre-update check must not veto the update it checked
+	@Test
+	public void testUpdateWritten() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		Transaction tx = session.beginTransaction();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		o.setChampLong(Long.valueOf(2));
+		tx.commit();
+		session.close();
+		Statement st = conn.createStatement();
+		ResultSet rs = st.executeQuery("SELECT version, champLong FROM "+TABLE+" WHERE id=1");
+		rs.next();
+		assertEquals(1, rs.getLong(1));
+		assertEquals(2, rs.getLong(2));
+		rs.close();
+		st.close();
+		}
+
+	// A thread draining while another one has drained but not applied yet waits for them, instead of checking without them
+	@Test
+	public void testDrainWhileApplying() throws Exception
+		{
+		LocalNotifyListener.publish(TABLE, "1", "5", Notification.Operation.UPDATE);
+		Thread first = new Thread()
+			{
+			public void run()
+				{
+				listener.drainNotifications();
+				}
+			};
+		first.start();
+		drained.await();
+
+		final AtomicReference<String> seen = new AtomicReference<String>();
+		Thread second = new Thread()
+			{
+			public void run()
+				{
+				listener.drainNotifications();
+				seen.set(listener.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+				}
+			};
+		second.start();
+		second.join(200); // done by now if it did not wait
+		release.countDown();
+		first.join();
+		second.join();
+		assertEquals("5", seen.get());
+		}
+	}
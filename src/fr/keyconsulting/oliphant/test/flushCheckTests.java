@@ -0,0 +1,221 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Versions of dirty objects checked against the database before flushing, for changes that were never notified
+public class flushCheckTests
+	{
+	private static final String TABLE = "persistentversionedobject";
+	private static List<String> queried; // Ids whose versions were queried before flushing
+
+	public static class CountingNotifyListener extends LocalNotifyListener
+		{
+		public Map<String,String> getCurrentVersions(String entityName, Collection<String> ids, Connection conn)
+			{
+			queried.addAll(ids);
+			return super.getCurrentVersions(entityName, ids, conn);
+			}
+		}
+
+	private SessionFactory sessionFactory;
+	private NotifyListener listener;
+	private Connection conn;
+
+	@Before
+	public void setUp() throws Exception
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig("jdbc:hsqldb:mem:flushcheck", "create-drop", false);
+		config.setProperty("oliphant.specific_listener", CountingNotifyListener.class.getName());
+		config.setProperty("oliphant.flush_check.enabled", "true");
+		config.addAnnotatedClass(PersistentParent.class);
+		config.addAnnotatedClass(PersistentChild.class);
+		queried = new ArrayList<String>();
+		listener = NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+		conn = Utils.getLocalConnection("jdbc:hsqldb:mem:flushcheck");
+		Utils.insertObjects(conn, 1, 3);
+		Statement st = conn.createStatement();
+		st.executeUpdate("INSERT INTO persistentparent (id, version) VALUES (1, 0)");
+		st.close();
+		}
+
+	@After
+	public void tearDown() throws Exception
+		{
+		conn.close();
+		sessionFactory.close();
+		}
+
+	// Changed behind our back without a notification : rejected before any of the updates is sent
+	@Test
+	public void testStaleBeforeFlush() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		Transaction tx = session.beginTransaction();
+		for (int i=1; i<=3; i++)
+			{
+			PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(i));
+			o.setChampLong(Long.valueOf(2));
+			}
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE "+TABLE+" SET version=1, champLong=3 WHERE id=2");
+		assertEquals("0", listener.getRegistry().get(VersionRegistry.getUid(TABLE, "2"))); // as loaded
+		try
+			{
+			session.flush();
+			fail("The object was stale");
+			}
+		catch (StaleObjectStateException e)
+			{
+			assertEquals("2", e.getIdentifier().toString());
+			}
+		tx.rollback();
+		session.close();
+		assertEquals("1", listener.getRegistry().get(VersionRegistry.getUid(TABLE, "2")));
+		ResultSet rs = st.executeQuery("SELECT SUM(champLong) FROM "+TABLE);
+		rs.next();
+		assertEquals(5, rs.getLong(1));
+		rs.close();
+
+		// Deleted rows are stale too
+		st.executeUpdate("DELETE FROM "+TABLE+" WHERE id=3");
+		session = sessionFactory.openSession();
+		tx = session.beginTransaction();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		o.setChampLong(Long.valueOf(4));
+		o = new PersistentVersionedObject();
+		o.setId(3);
+		o.setChampLong(Long.valueOf(4));
+		session.update(o);
+		try
+			{
+			tx.commit();
+			fail("The object was deleted");
+			}
+		catch (StaleObjectStateException e)
+			{
+			assertEquals("3", e.getIdentifier().toString());
+			tx.rollback();
+			}
+		session.close();
+		st.close();
+		assertEquals(VersionRegistry.DELETED, listener.getRegistry().get(VersionRegistry.getUid(TABLE, "3")));
+		}
+
+	// Up to date objects are written as usual
+	@Test
+	public void testUpToDate() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		Transaction tx = session.beginTransaction();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		o.setChampLong(Long.valueOf(2));
+		session.get(PersistentVersionedObject.class, Long.valueOf(2)); // not dirty, not checked
+		tx.commit();
+		session.close();
+		assertEquals(1, o.getVersion());
+		assertEquals(0, listener.getRegistry().getFilter().getEntryCount()); // nothing found newer
+		assertEquals("[1]", queried.toString()); // only the object Hibernate updated
+		}
+
+	// Adding to a collection increments the version of its owner, which is checked although none of its own properties changed
+	@Test
+	public void testCollectionChange() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		Transaction tx = session.beginTransaction();
+		PersistentParent parent = (PersistentParent) session.get(PersistentParent.class, Long.valueOf(1));
+		PersistentChild child = new PersistentChild();
+		child.setId(1);
+		child.setParent(parent);
+		parent.getChildren().add(child);
+		session.save(child);
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE persistentparent SET version=1 WHERE id=1");
+		try
+			{
+			session.flush();
+			fail("The parent was stale");
+			}
+		catch (StaleObjectStateException e)
+			{
+			assertEquals("1", e.getIdentifier().toString());
+			}
+		tx.rollback();
+		session.close();
+		assertEquals("[1]", queried.toString());
+		assertEquals("1", listener.getRegistry().get(VersionRegistry.getUid("persistentparent", "1"))); // found by the check, not by the update
+		ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM persistentchild");
+		rs.next();
+		assertEquals(0, rs.getLong(1));
+		rs.close();
+		st.close();
+		}
+
+	// Flushes made before a query are checked too
+	@Test
+	public void testAutoFlush() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		Transaction tx = session.beginTransaction();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		o.setChampLong(Long.valueOf(2));
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE "+TABLE+" SET version=1 WHERE id=1");
+		st.close();
+		try
+			{
+			session.createQuery("from PersistentVersionedObject").list();
+			fail("The object was stale");
+			}
+		catch (StaleObjectStateException e)
+			{
+			assertEquals("1", e.getIdentifier().toString());
+			}
+		tx.rollback();
+		session.close();
+		assertEquals("1", listener.getRegistry().get(VersionRegistry.getUid(TABLE, "1"))); // found by the check, not by the update
+		}
+	}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.HotSpotTracker;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Heavy hitter tracking, without a database
+public class hotSpotTests
+	{
+	private final int NB_HOT = 5;
+	private final int NB_COLD = 20000;
+
+	// A few hot rows hidden among many rows changed a few times each
+	@Test
+	public void testHotRowsAreFound()
+		{
+		HotSpotTracker tracker = new HotSpotTracker(1024, 4, 10);
+		Random random = new Random(0);
+		List<String> events = new ArrayList<String>();
+		for (int i=0; i<NB_HOT; i++)
+			{
+			for (int n=0; n<1000 * (i + 1); n++) {events.add(VersionRegistry.getUid("hot", String.valueOf(i)));}
+			}
+		for (int i=0; i<NB_COLD; i++)
+			{
+			for (int n=0; n<3; n++) {events.add(VersionRegistry.getUid("cold", String.valueOf(i)));}
+			}
+		Collections.shuffle(events, random);
+		for (int i=0; i<events.size(); i++) {tracker.record(events.get(i));}
+
+		List<HotSpotTracker.HotSpot> top = tracker.getTop();
+		for (int i=0; i<NB_HOT; i++)
+			{
+			HotSpotTracker.HotSpot spot = top.get(i);
+			assertEquals("hot", spot.getTableName());
+			assertEquals(String.valueOf(NB_HOT - 1 - i), spot.getId());
+			assertTrue(spot.getCount() >= 1000 * (NB_HOT - i));
+			}
+		assertEquals(Long.valueOf(3 * NB_COLD), tracker.getCountsByTable().get("cold"));
+		assertEquals(events.size(), tracker.getTotal());
+		}
+
+	@Test
+	public void testReset()
+		{
+		HotSpotTracker tracker = new HotSpotTracker(64, 2, 3);
+		tracker.record(VersionRegistry.getUid("t", "1"));
+		tracker.reset();
+		assertEquals(0, tracker.getTotal());
+		assertEquals(0, tracker.estimate(VersionRegistry.getUid("t", "1")));
+		assertTrue(tracker.getTop().isEmpty());
+		}
+	}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.HubNotifyListener;
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotificationHub;
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Session factories of the same database sharing a notification hub
+public class hubTests
+	{
+	private static final String TABLE = "persistentversionedobject";
+
+	@Test
+	public void testSharedListener() throws Exception
+		{
+		int hubs = NotificationHub.getHubCount();
+		AnnotationConfiguration configA = getConfig("jdbc:hsqldb:mem:hub");
+		NotifyListener listenerA = NotifyListener.attachListener(configA);
+		SessionFactory sessionFactoryA = configA.buildSessionFactory();
+		AnnotationConfiguration configB = getConfig("jdbc:hsqldb:mem:hub");
+		NotifyListener listenerB = NotifyListener.attachListener(configB);
+		SessionFactory sessionFactoryB = configB.buildSessionFactory();
+		AnnotationConfiguration configC = getConfig("jdbc:hsqldb:mem:otherhub");
+		NotifyListener listenerC = NotifyListener.attachListener(configC);
+		SessionFactory sessionFactoryC = configC.buildSessionFactory();
+
+		NotificationHub hub = ((HubNotifyListener) listenerA.getSpecificNotifyListener()).getHub();
+		assertEquals(hub, ((HubNotifyListener) listenerB.getSpecificNotifyListener()).getHub());
+		assertEquals(2, hub.getViewCount());
+		assertNotSame(hub, ((HubNotifyListener) listenerC.getSpecificNotifyListener()).getHub()); // another database
+		assertEquals(hubs + 2, NotificationHub.getHubCount());
+
+		// Drained once, through either session factory, applied to both
+		LocalNotifyListener.publish(TABLE, "1", "3", Notification.Operation.UPDATE);
+		listenerA.drainNotifications();
+		assertEquals("3", listenerA.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+		assertEquals("3", listenerB.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+
+		// The hub outlives the first session factory closed
+		sessionFactoryA.close();
+		assertEquals(1, hub.getViewCount());
+		LocalNotifyListener.publish(TABLE, "1", "4", Notification.Operation.UPDATE);
+		listenerB.drainNotifications();
+		assertEquals("4", listenerB.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+		assertEquals("3", listenerA.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+
+		sessionFactoryB.close();
+		assertEquals(0, hub.getViewCount());
+		assertEquals(hubs + 1, NotificationHub.getHubCount());
+		sessionFactoryC.close();
+		assertEquals(hubs, NotificationHub.getHubCount());
+		}
+
+	// Resyncs of every session factory query versions on the connections of the hub, which outlive them
+	@Test
+	public void testLentConnections() throws Exception
+		{
+		AnnotationConfiguration configA = getConfig("jdbc:hsqldb:mem:hubresync", "create-drop");
+		NotifyListener listenerA = NotifyListener.attachListener(configA);
+		SessionFactory sessionFactoryA = configA.buildSessionFactory();
+		AnnotationConfiguration configB = getConfig("jdbc:hsqldb:mem:hubresync", "none");
+		NotifyListener listenerB = NotifyListener.attachListener(configB);
+		SessionFactory sessionFactoryB = configB.buildSessionFactory();
+		HubNotifyListener viewA = (HubNotifyListener) listenerA.getSpecificNotifyListener();
+		NotificationHub hub = viewA.getHub();
+		Connection conn = Utils.getLocalConnection("jdbc:hsqldb:mem:hubresync");
+		try
+			{
+			Utils.insertObjects(conn, 1, 2);
+			listenerA.getRegistry().update(VersionRegistry.getUid(TABLE, "1"), "0");
+			listenerB.getRegistry().update(VersionRegistry.getUid(TABLE, "2"), "0");
+			conn.createStatement().executeUpdate("UPDATE persistentversionedobject SET version = 1");
+			hub.notificationsLost(viewA);
+			assertEquals("1", listenerA.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+			assertEquals("1", listenerB.getRegistry().get(VersionRegistry.getUid(TABLE, "2")));
+			assertEquals(1, hub.getIdleConnectionCount()); // lent to one session factory after the other
+			}
+		finally
+			{
+			conn.close();
+			sessionFactoryB.close();
+			sessionFactoryA.close();
+			}
+		assertEquals(0, hub.getIdleConnectionCount());
+		assertNotNull(viewA.getWatermark()); // detached, no hub to ask
+		}
+
+	private static AnnotationConfiguration getConfig(String url)
+		{
+		return getConfig(url, null);
+		}
+
+	private static AnnotationConfiguration getConfig(String url, String hbm2ddl)
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig(url, hbm2ddl, false);
+		config.setProperty("oliphant.hub.enabled", "true");
+		return config;
+		}
+	}
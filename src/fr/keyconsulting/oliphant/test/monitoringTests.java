@@ -0,0 +1,81 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.EntityInfo;
+
+// Which entities are monitored : configuration lists first, then the @Monitored annotation, then the default
+public class monitoringTests
+	{
+	private static final String OBJECT = PersistentVersionedObject.class.getName();
+	private static final String AUDIT = PersistentAuditRecord.class.getName(); // @Monitored(false)
+
+	@Test
+	public void testDefault()
+		{
+		AnnotationConfiguration config = getConfig();
+		assertTrue(isMonitored(config, OBJECT));
+		assertFalse(isMonitored(config, AUDIT));
+		}
+
+	@Test
+	public void testNotMonitoredByDefault()
+		{
+		AnnotationConfiguration config = getConfig();
+		config.setProperty("oliphant.monitor_by_default", "false");
+		assertFalse(isMonitored(config, OBJECT));
+		config.setProperty("oliphant.monitored_entities", " com.example.Other , "+OBJECT);
+		assertTrue(isMonitored(config, OBJECT));
+		}
+
+	@Test
+	public void testListsOverrideAnnotation()
+		{
+		AnnotationConfiguration config = getConfig();
+		config.setProperty("oliphant.monitored_entities", AUDIT);
+		assertTrue(isMonitored(config, AUDIT));
+		config.setProperty("oliphant.unmonitored_entities", AUDIT+","+OBJECT);
+		assertFalse(isMonitored(config, AUDIT)); // unmonitored wins over monitored
+		assertFalse(isMonitored(config, OBJECT));
+		}
+
+	private static boolean isMonitored(AnnotationConfiguration config, String entityName)
+		{
+		return EntityInfo.isMonitored(config, config.getClassMapping(entityName));
+		}
+
+	private static AnnotationConfiguration getConfig()
+		{
+		AnnotationConfiguration config = new AnnotationConfiguration();
+		config.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect");
+		config.addAnnotatedClass(PersistentVersionedObject.class);
+		config.addAnnotatedClass(PersistentAuditRecord.class);
+		config.buildMappings();
+		return config;
+		}
+	}
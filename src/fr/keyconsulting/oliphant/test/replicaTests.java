@@ -0,0 +1,116 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotifyListener;
+
+// Loads from a lagging replica, played by a database that received the notification of a change but not the change itself
+public class replicaTests
+	{
+	private static final String URL = "jdbc:hsqldb:mem:replica";
+	private static final String TABLE = "persistentversionedobject";
+
+	private SessionFactory sessionFactory;
+	private NotifyListener listener;
+	private Connection conn;
+
+	@Before
+	public void setUp() throws Exception
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig(URL, "create-drop", false);
+		config.setProperty("oliphant.replica_reads", "true");
+		listener = NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+		conn = Utils.getLocalConnection(URL);
+		Utils.insertObjects(conn, 1, 1);
+		LocalNotifyListener.publish(TABLE, "1", "1", Notification.Operation.UPDATE);
+		}
+
+	@After
+	public void tearDown() throws Exception
+		{
+		conn.close();
+		sessionFactory.close();
+		}
+
+	@Test
+	public void testLaggingReplica() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		session.connection().setReadOnly(true);
+		try
+			{
+			session.get(PersistentVersionedObject.class, Long.valueOf(1));
+			fail("The replica was lagging");
+			}
+		catch (StaleObjectStateException e)
+			{
+			assertTrue(listener.isPinnedToPrimary(session));
+			}
+		session.connection().setReadOnly(false);
+		session.close();
+		}
+
+	// Stale loads are allowed on the primary by default, and the session is not pinned
+	@Test
+	public void testPrimary() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		assertEquals(0, o.getVersion());
+		assertFalse(listener.isPinnedToPrimary(session));
+		session.close();
+		}
+
+	// Once the replica caught up, its objects are accepted
+	@Test
+	public void testCaughtUp() throws Exception
+		{
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE "+TABLE+" SET version=1 WHERE id=1");
+		st.close();
+		Session session = sessionFactory.openSession();
+		session.connection().setReadOnly(true);
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		assertEquals(1, o.getVersion());
+		assertFalse(listener.isPinnedToPrimary(session));
+		session.connection().setReadOnly(false);
+		session.close();
+		}
+	}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotificationBuffer;
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Objects changed while notifications were lost, found by the resynchronization that follows
+public class resyncTests
+	{
+	private static final String URL = "jdbc:hsqldb:mem:resync";
+	private static final String TABLE = "persistentversionedobject";
+
+	public static class FailingNotifyListener extends LocalNotifyListener
+		{
+		public void setUp()
+			{
+			throw new HibernateException("Cannot listen");
+			}
+		}
+
+	private SessionFactory sessionFactory;
+	private NotifyListener listener;
+	private Connection conn;
+
+	@Before
+	public void setUp() throws Exception
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig(URL, "create-drop", true);
+		listener = NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+		conn = Utils.getLocalConnection(URL);
+		Utils.insertObjects(conn, 1, 2);
+		}
+
+	@After
+	public void tearDown() throws Exception
+		{
+		LocalNotifyListener.reconnect();
+		conn.close();
+		sessionFactory.close();
+		}
+
+	// Loaded before the outage, changed during it, never notified
+	@Test
+	public void testChangedDuringOutage() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		session.get(PersistentVersionedObject.class, Long.valueOf(2));
+		LocalNotifyListener.disconnect();
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE "+TABLE+" SET version=1 WHERE id=1");
+		st.close();
+		LocalNotifyListener.publish(TABLE, "1", "1", Notification.Operation.UPDATE);
+		LocalNotifyListener.reconnect();
+
+		assertEquals("1", listener.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+		assertEquals(1, listener.getRegistry().getFilter().getEntryCount()); // the unchanged object is still only a loaded one
+		try
+			{
+			session.persist(o);
+			fail("The object was changed during the outage");
+			}
+		catch (StaleObjectStateException e)
+			{
+			assertEquals(0, o.getVersion());
+			}
+		session.close();
+		}
+
+	// The listener tells when notifications stop and when they are back and resynchronized
+	@Test
+	public void testInterrupted() throws Exception
+		{
+		assertFalse(listener.isInterrupted());
+		LocalNotifyListener.disconnect();
+		assertTrue(listener.isInterrupted());
+		LocalNotifyListener.reconnect();
+		assertFalse(listener.isInterrupted());
+		}
+
+	// The cached state of an object changed during the outage is evicted
+	@Test
+	public void testCachedDuringOutage() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		session.close();
+		LocalNotifyListener.disconnect();
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE "+TABLE+" SET version=1 WHERE id=1");
+		st.close();
+		session = sessionFactory.openSession();
+		assertEquals(0, ((PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1))).getVersion()); // from the L2 cache
+		session.close();
+		LocalNotifyListener.reconnect();
+		session = sessionFactory.openSession();
+		assertEquals(1, ((PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1))).getVersion());
+		session.close();
+		}
+
+	// Deleted during the outage
+	@Test
+	public void testDeletedDuringOutage() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(2));
+		LocalNotifyListener.disconnect();
+		Statement st = conn.createStatement();
+		st.executeUpdate("DELETE FROM "+TABLE+" WHERE id=2");
+		st.close();
+		LocalNotifyListener.reconnect();
+		assertEquals(VersionRegistry.DELETED, listener.getRegistry().get(VersionRegistry.getUid(TABLE, "2")));
+		try
+			{
+			session.persist(o);
+			fail("The object was deleted during the outage");
+			}
+		catch (StaleObjectStateException e)
+			{
+			// expected
+			}
+		session.close();
+		}
+	
+	// A payload that cannot be read does not lose the rest of its batch, and what it stood for is found by a resync
+	@Test
+	public void testMalformedNotification() throws Exception
+		{
+		Session session = sessionFactory.openSession();
+		session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		session.close();
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE "+TABLE+" SET version=1 WHERE id=1");
+		st.executeUpdate("UPDATE "+TABLE+" SET version=3 WHERE id=2");
+		st.close();
+		NotificationBuffer buffer = new NotificationBuffer();
+		assertFalse(buffer.add(TABLE+"#1###1###U", new String[0])); // no txid, as sent by an old trigger
+		assertFalse(buffer.add(TABLE+"#1###1###X###12", new String[0]));
+		assertTrue(buffer.add(TABLE+"#2###3###U###13", new String[0]));
+		assertEquals(1, buffer.size());
+		assertEquals(2, buffer.getSkipped());
+
+		listener.notificationsReceived(listener.getSpecificNotifyListener(), buffer);
+		assertEquals("3", listener.getRegistry().get(VersionRegistry.getUid(TABLE, "2")));
+		assertEquals("1", listener.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+		buffer.clear();
+		assertEquals(0, buffer.getSkipped());
+		}
+
+	// A listener that never managed to listen can still be closed, and the failure is the one reported
+	@Test
+	public void testCloseAfterFailedStart() throws Exception
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig(URL, null, false);
+		config.setProperty("oliphant.specific_listener", FailingNotifyListener.class.getName());
+		config.setProperty("oliphant.eager_start", "false");
+		NotifyListener.attachListener(config);
+		SessionFactory failingFactory = config.buildSessionFactory();
+		Session session = failingFactory.openSession();
+		try
+			{
+			session.get(PersistentVersionedObject.class, Long.valueOf(1));
+			fail("The listener could not start");
+			}
+		catch (HibernateException e)
+			{
+			assertEquals("Cannot listen", e.getMessage());
+			}
+		session.close();
+		failingFactory.close();
+		}
+	}
@@ -0,0 +1,234 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.SharedVersionTable;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Version table shared through a memory mapped file, both sides being opened in the same JVM
+public class sharedRegistryTests
+	{
+	private File file;
+	private SharedVersionTable writer;
+	private SharedVersionTable reader;
+
+	@Before
+	public void setUp() throws IOException
+		{
+		file = File.createTempFile("oliphant", ".shared");
+		writer = new SharedVersionTable(file.getPath(), 1024);
+		writer.open();
+		reader = new SharedVersionTable(file.getPath(), 1024);
+		reader.open();
+		assertTrue(writer.tryBecomeWriter());
+		assertFalse(reader.tryBecomeWriter());
+		}
+
+	@After
+	public void tearDown()
+		{
+		writer.close();
+		reader.close();
+		file.delete();
+		new File(file.getPath()+".lock").delete();
+		}
+
+	@Test
+	public void testVersions()
+		{
+		assertTrue(reader.isInitialized());
+		assertNull(reader.get("t#1"));
+		writer.put("t#1", "3");
+		writer.put("t#2", "2010-03-01 10:00:00.123456");
+		writer.put("t#3", VersionRegistry.DELETED);
+		writer.put("t#4", VersionRegistry.XID_PREFIX+"4294967295");
+		assertEquals("3", reader.get("t#1"));
+		assertEquals(0, VersionRegistry.compareVersions("2010-03-01 10:00:00.123456", reader.get("t#2")));
+		assertEquals(VersionRegistry.DELETED, reader.get("t#3"));
+		assertEquals(VersionRegistry.XID_PREFIX+"4294967295", reader.get("t#4"));
+		writer.put("t#1", "4");
+		assertEquals("4", reader.get("t#1"));
+		}
+
+	// Registries on both sides, as set up by the listeners of the writer and reader JVMs
+	@Test
+	public void testRegistries()
+		{
+		VersionRegistry writerRegistry = new VersionRegistry(0, null);
+		writerRegistry.setSharedTable(writer, true);
+		VersionRegistry readerRegistry = new VersionRegistry(0, null);
+		readerRegistry.setSharedTable(reader, false);
+		writerRegistry.update(VersionRegistry.getUid("t", "1"), "5");
+		writerRegistry.update(VersionRegistry.getUid("t", "1"), "4"); // late notification, not published
+		assertEquals("5", readerRegistry.getLatestVersion("t", "1"));
+		assertTrue(readerRegistry.mightHaveChanged("t", "2"));
+		assertNull(readerRegistry.getLatestVersion("t", "2"));
+		}
+
+	@Test
+	public void testTakeOver()
+		{
+		writer.put("t#1", "3");
+		writer.close();
+		assertTrue(reader.tryBecomeWriter());
+		List<String> uids = new ArrayList<String>();
+		List<String> versions = new ArrayList<String>();
+		reader.copyEntries(uids, versions);
+		assertEquals(1, uids.size());
+		assertEquals("t#1", uids.get(0));
+		assertEquals("3", versions.get(0));
+		}
+
+	// Readers never see a version that was not written, while the writer keeps changing the same slots
+	@Test
+	public void testConcurrentReads() throws InterruptedException
+		{
+		final int NB_KEYS = 16;
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong errors = new AtomicLong();
+		Thread readerThread = new Thread()
+			{
+			public void run()
+				{
+				long[] last = new long[NB_KEYS];
+				while (running.get())
+					{
+					for (int k=0; k<NB_KEYS; k++)
+						{
+						String version = reader.get("t#"+k);
+						if (version == null) {continue;}
+						long v = Long.parseLong(version);
+						// versions of key k are k, k + NB_KEYS, k + 2 * NB_KEYS...
+						if ((v < last[k]) || (v % NB_KEYS != k)) {errors.incrementAndGet();}
+						last[k] = v;
+						}
+					}
+				}
+			};
+		readerThread.start();
+		for (long v=0; v<200000; v++)
+			{
+			writer.put("t#"+(v % NB_KEYS), String.valueOf(v));
+			}
+		running.set(false);
+		readerThread.join();
+		assertEquals(0, errors.get());
+		}
+	
+	// Versions the table cannot hold are not dropped silently : readers are told not to trust it anymore
+	@Test
+	public void testDegraded()
+		{
+		writer.put("t#1", "3");
+		assertFalse(reader.isDegraded());
+		writer.put("t#2", "not a version");
+		assertTrue(reader.isDegraded());
+		}
+
+	@Test
+	public void testFull()
+		{
+		for (int i=0; i<768; i++) {writer.put("t#"+i, "1");}
+		assertFalse(reader.isDegraded());
+		writer.put("t#768", "1");
+		assertTrue(reader.isDegraded());
+		assertNull(reader.get("t#768"));
+		}
+
+	// A writer taking over a degraded table empties it, so that it can be shared again
+	@Test
+	public void testResetDegraded()
+		{
+		for (int i=0; i<769; i++) {writer.put("t#"+i, "1");}
+		assertTrue(reader.isDegraded());
+		writer.close();
+		assertTrue(reader.tryBecomeWriter());
+		assertTrue(reader.isDegraded());
+		reader.reset();
+		assertFalse(reader.isDegraded());
+		assertNull(reader.get("t#1"));
+		for (int i=0; i<768; i++) {reader.put("u#"+i, "2");}
+		assertFalse(reader.isDegraded());
+		assertEquals("2", reader.get("u#1"));
+		}
+
+	// A reader of a degraded table listens to notifications itself
+	@Test
+	public void testReaderFallBack() throws Exception
+		{
+		writer.close();
+		reader.close();
+		file.delete();
+		SessionFactory writerFactory = buildSessionFactory("create-drop");
+		NotifyListener writerListener = lastListener;
+		SessionFactory readerFactory = buildSessionFactory("none");
+		NotifyListener readerListener = lastListener;
+		try
+			{
+			LocalNotifyListener.publish("persistentversionedobject", "1", "2", Notification.Operation.UPDATE);
+			writerListener.drainNotifications();
+			assertEquals("2", readerListener.getRegistry().getLatestVersion("persistentversionedobject", "1")); // read from the table
+
+			writerListener.getRegistry().update(VersionRegistry.getUid("persistentversionedobject", "2"), "not a version");
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((readerListener.getRegistry().getLatestVersion("persistentversionedobject", "1") != null) && (System.currentTimeMillis() < deadline)) {Thread.sleep(10);}
+			assertNull(readerListener.getRegistry().getLatestVersion("persistentversionedobject", "1")); // its own entries now, the table is not read anymore
+			LocalNotifyListener.publish("persistentversionedobject", "1", "3", Notification.Operation.UPDATE);
+			readerListener.drainNotifications();
+			assertEquals("3", readerListener.getRegistry().getLatestVersion("persistentversionedobject", "1"));
+			}
+		finally
+			{
+			readerFactory.close();
+			writerFactory.close();
+			}
+		}
+
+	private NotifyListener lastListener;
+
+	private SessionFactory buildSessionFactory(String hbm2ddl)
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig("jdbc:hsqldb:mem:shared", hbm2ddl, false);
+		config.setProperty("oliphant.shared_registry.file", file.getPath());
+		lastListener = NotifyListener.attachListener(config);
+		return config.buildSessionFactory();
+		}
+	}
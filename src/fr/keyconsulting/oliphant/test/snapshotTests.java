@@ -0,0 +1,137 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// The registry saved when a session factory is closed and restored by the next one
+public class snapshotTests
+	{
+	private static final String URL = "jdbc:hsqldb:mem:snapshot";
+	private static final String TABLE = "persistentversionedobject";
+	private static final String UID = VersionRegistry.getUid(TABLE, "1");
+
+	private File file;
+	private Connection conn;
+	private SessionFactory sessionFactory;
+	private NotifyListener listener;
+
+	@Before
+	public void setUp() throws Exception
+		{
+		file = File.createTempFile("oliphant", ".snapshot");
+		file.delete();
+		conn = Utils.getLocalConnection(URL);
+		}
+
+	@After
+	public void tearDown() throws Exception
+		{
+		if (sessionFactory != null) {sessionFactory.close();}
+		Statement st = conn.createStatement();
+		st.execute("DROP TABLE "+TABLE+" IF EXISTS");
+		st.close();
+		conn.close();
+		file.delete();
+		}
+
+	private void open(String hbm2ddl)
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig(URL, hbm2ddl, true);
+		config.setProperty("oliphant.snapshot.file", file.getPath());
+		listener = NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+		}
+
+	private void close()
+		{
+		sessionFactory.close();
+		sessionFactory = null;
+		}
+
+	private void setVersion(int version) throws Exception
+		{
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE "+TABLE+" SET version="+version+" WHERE id=1");
+		st.close();
+		}
+
+	private void loadAndClose(String hbm2ddl) throws Exception
+		{
+		open(hbm2ddl);
+		Utils.insertObjects(conn, 1, 1);
+		Session session = sessionFactory.openSession();
+		session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		session.close();
+		assertEquals("0", listener.getRegistry().get(UID));
+		close();
+		}
+
+	// Nothing was notified since the snapshot, it is trusted as is
+	@Test
+	public void testRestore() throws Exception
+		{
+		loadAndClose("update");
+		setVersion(5); // not notified, so not seen
+		open("update");
+		assertEquals("0", listener.getRegistry().get(UID));
+		}
+
+	// A change was notified while no node was listening, the restored objects are checked against the database
+	@Test
+	public void testResyncAfterMissedChange() throws Exception
+		{
+		loadAndClose("update");
+		open("update");
+		close();
+		setVersion(5);
+		LocalNotifyListener.publish(TABLE, "1", "5", Notification.Operation.UPDATE);
+		open("update");
+		assertEquals("5", listener.getRegistry().get(UID));
+		}
+
+	// A schema created at startup starts empty, whatever the snapshot holds
+	@Test
+	public void testCreatedSchema() throws Exception
+		{
+		loadAndClose("update");
+		open("create");
+		assertNull(listener.getRegistry().get(UID));
+		assertEquals(0, listener.getRegistry().size());
+		}
+	}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotifyListener;
+
+// What happens to stale objects under each stale policy, on an in-memory HSQLDB database
+public class stalePolicyTests
+	{
+	private static final String URL = "jdbc:hsqldb:mem:stalepolicy";
+	private static final String TABLE = "persistentversionedobject";
+
+	private SessionFactory sessionFactory;
+	private Connection conn;
+
+	private void setUp(String property, String policy) throws Exception
+		{
+		AnnotationConfiguration config = Utils.getLocalConfig(URL, "create-drop", false);
+		if (property != null) {config.setProperty(property, policy);}
+		NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+		conn = Utils.getLocalConnection(URL);
+		Utils.insertObjects(conn, 1, 1);
+		}
+
+	@After
+	public void tearDown() throws Exception
+		{
+		conn.close();
+		sessionFactory.close();
+		}
+
+	// Another node changes the row once the object is loaded
+	private void changeRow() throws Exception
+		{
+		Statement st = conn.createStatement();
+		st.executeUpdate("UPDATE "+TABLE+" SET version=1, champLong=5 WHERE id=1");
+		st.close();
+		LocalNotifyListener.publish(TABLE, "1", "1", Notification.Operation.UPDATE);
+		}
+
+	@Test
+	public void testException() throws Exception
+		{
+		setUp(null, null);
+		Session session = sessionFactory.openSession();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		changeRow();
+		try
+			{
+			session.persist(o);
+			fail("The object was stale");
+			}
+		catch (StaleObjectStateException e)
+			{
+			assertEquals(0, o.getVersion());
+			}
+		session.close();
+		}
+
+	// Unchanged stale objects are reloaded in place
+	@Test
+	public void testRefresh() throws Exception
+		{
+		setUp("oliphant.stale_policy", "refresh");
+		Session session = sessionFactory.openSession();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		changeRow();
+		session.persist(o);
+		assertEquals(1, o.getVersion());
+		assertEquals(Long.valueOf(5), o.getChampLong());
+		session.close();
+		}
+
+	// Refreshing would lose the pending changes
+	@Test
+	public void testRefreshDirty() throws Exception
+		{
+		setUp("oliphant.stale_policy", "refresh");
+		Session session = sessionFactory.openSession();
+		Transaction tx = session.beginTransaction();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		o.setChampLong(Long.valueOf(2));
+		changeRow();
+		try
+			{
+			session.persist(o);
+			fail("The object was stale");
+			}
+		catch (StaleObjectStateException e)
+			{
+			assertEquals(Long.valueOf(2), o.getChampLong());
+			}
+		tx.rollback();
+		session.close();
+		}
+
+	// The entity policy overrides the global one
+	@Test
+	public void testEntityPolicy() throws Exception
+		{
+		setUp("oliphant.stale_policy."+PersistentVersionedObject.class.getName(), "refresh");
+		Session session = sessionFactory.openSession();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		changeRow();
+		session.persist(o);
+		assertEquals(1, o.getVersion());
+		session.close();
+		}
+	}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AnnotationConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.NotificationBuffer;
+import fr.keyconsulting.oliphant.NotifyListener;
+import fr.keyconsulting.oliphant.TraceReader;
+import fr.keyconsulting.oliphant.TraceRecorder;
+import fr.keyconsulting.oliphant.VersionRegistry;
+import fr.keyconsulting.oliphant.replay.TraceReplayer;
+
+// Recording notifications and events, and replaying them without a database
+public class traceTests
+	{
+	private static final String TABLE = "persistentversionedobject";
+
+	@Test
+	public void testRoundTrip() throws Exception
+		{
+		File file = File.createTempFile("oliphant", ".trace");
+		file.deleteOnExit();
+		TraceRecorder recorder = new TraceRecorder(file.getPath());
+		recorder.open();
+		NotificationBuffer buffer = new NotificationBuffer();
+		buffer.add("t#1###2###U###10", new String[0]);
+		buffer.add("t#\u00e9###-1###D###11", new String[0]);
+		recorder.recordNotifications(buffer);
+		Thread.sleep(20);
+		recorder.recordEvent(TraceRecorder.FLUSH, "t", "1", "1");
+		recorder.close();
+
+		TraceReader reader = new TraceReader(file.getPath());
+		assertTrue(reader.next());
+		assertEquals(TraceRecorder.NOTIFICATION, reader.getType());
+		assertEquals("t#1###2###U###10", reader.getPayload());
+		assertTrue(reader.next());
+		assertEquals("t#\u00e9###-1###D###11", reader.getPayload());
+		long before = reader.getTime();
+		assertTrue(reader.next());
+		assertEquals(TraceRecorder.FLUSH, reader.getType());
+		assertEquals("t", reader.getTableName());
+		assertEquals("1", reader.getId());
+		assertEquals("1", reader.getVersion());
+		assertTrue(reader.getTime() - before >= 20000);
+		assertFalse(reader.next());
+		reader.close();
+		}
+
+	// Records reach the file while recording goes on, not only when it stops
+	@Test
+	public void testPeriodicFlush() throws Exception
+		{
+		File file = File.createTempFile("oliphant", ".trace");
+		file.deleteOnExit();
+		TraceRecorder recorder = new TraceRecorder(file.getPath(), 20);
+		recorder.open();
+		recorder.recordEvent(TraceRecorder.LOAD, "t", "1", "1");
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((file.length() == 0) && (System.currentTimeMillis() < deadline)) {Thread.sleep(10);}
+		TraceReader reader = new TraceReader(file.getPath());
+		assertTrue(reader.next());
+		assertEquals(TraceRecorder.LOAD, reader.getType());
+		reader.close();
+		recorder.close();
+		}
+
+	// A session misses a change, the trace of that run gives the same stale object when replayed
+	@Test
+	public void testRecordAndReplay() throws Exception
+		{
+		File file = File.createTempFile("oliphant", ".trace");
+		file.deleteOnExit();
+
+		AnnotationConfiguration config = Utils.getLocalConfig("jdbc:hsqldb:mem:record", "create-drop", false);
+		config.setProperty("oliphant.record.file", file.getPath());
+		config.setProperty("oliphant.record.events", "true");
+		NotifyListener.attachListener(config);
+		SessionFactory sessionFactory = config.buildSessionFactory();
+		Connection conn = Utils.getLocalConnection("jdbc:hsqldb:mem:record");
+		Utils.insertObjects(conn, 1, 1);
+		Statement st = conn.createStatement();
+
+		Session session = sessionFactory.openSession();
+		Transaction tx = session.beginTransaction();
+		PersistentVersionedObject o = (PersistentVersionedObject) session.get(PersistentVersionedObject.class, Long.valueOf(1));
+		st.executeUpdate("UPDATE "+TABLE+" SET version=1 WHERE id=1");
+		LocalNotifyListener.publish(TABLE, "1", "1", Notification.Operation.UPDATE);
+		try
+			{
+			session.persist(o);
+			fail("The object was stale");
+			}
+		catch (StaleObjectStateException e)
+			{
+			tx.rollback();
+			}
+		session.close();
+		st.close();
+		conn.close();
+		sessionFactory.close();
+
+		config = Utils.getLocalConfig("jdbc:hsqldb:mem:replay", "create-drop", false);
+		config.setProperty("oliphant.specific_listener", "fr.keyconsulting.oliphant.replay.ReplayNotifyListener");
+		NotifyListener listener = NotifyListener.attachListener(config);
+		sessionFactory = config.buildSessionFactory();
+		TraceReplayer replayer = new TraceReplayer(listener);
+		replayer.replay(file.getPath(), 0);
+		sessionFactory.close();
+		assertEquals(1, replayer.getNotificationCount());
+		assertEquals(2, replayer.getEventCount()); // load and persist
+		assertEquals(1, replayer.getStaleCount());
+		assertEquals("1", listener.getRegistry().get(VersionRegistry.getUid(TABLE, "1")));
+		}
+	}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+package fr.keyconsulting.oliphant.test;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.dialect.PostgreSQLDialect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.EntityInfo;
+import fr.keyconsulting.oliphant.postgresql.PostgreSQLListenerAuxiliary;
+
+// The PostgreSQL triggers generated for hbm2ddl, checked as text since the tests run without PostgreSQL
+public class triggerTests
+	{
+	private static AnnotationConfiguration getConfiguration(Class entityClass)
+		{
+		AnnotationConfiguration config = new AnnotationConfiguration();
+		config.addAnnotatedClass(entityClass);
+		config.buildMappings();
+		return config;
+		}
+
+	private static String getDDL(AnnotationConfiguration config)
+		{
+		return new PostgreSQLListenerAuxiliary(config).sqlCreateString(new PostgreSQLDialect(), null, null, null);
+		}
+
+	@Test
+	public void testXminProperty()
+		{
+		AnnotationConfiguration config = getConfiguration(PersistentLegacyObject.class);
+		assertEquals("xmin", EntityInfo.getXminProperty(config.getClassMapping(PersistentLegacyObject.class.getName())));
+		config = getConfiguration(PersistentVersionedObject.class);
+		assertNull(EntityInfo.getXminProperty(config.getClassMapping(PersistentVersionedObject.class.getName())));
+		}
+
+	@Test
+	public void testVersionedTriggers()
+		{
+		String ddl = getDDL(getConfiguration(PersistentVersionedObject.class));
+		assertTrue(ddl.contains("CREATE SEQUENCE oliphant_changes;"));
+		assertTrue(ddl.contains("ELSIF current_setting('oliphant.counted', true) IS DISTINCT FROM 'on' THEN\n			PERFORM nextval('oliphant_changes');\n			PERFORM set_config('oliphant.counted', 'on', true);"));
+		assertTrue(ddl.contains("'###' || NEW.version::text || '###U###'"));
+		assertTrue(ddl.contains("FOR EACH ROW WHEN (OLD.version IS DISTINCT FROM NEW.version)"));
+		assertTrue(ddl.contains("AFTER DELETE ON PersistentVersionedObject"));
+		}
+
+	// System columns cannot be read from NEW in PL/pgSQL, the updating transaction id is sent instead
+	@Test
+	public void testXminTriggers()
+		{
+		String ddl = getDDL(getConfiguration(PersistentLegacyObject.class));
+		assertFalse(ddl.contains("NEW.xmin"));
+		assertTrue(ddl.contains("'###' || 'xid:' || (txid_current() % 4294967296)::text || '###U###'"));
+		assertFalse(ddl.contains("FOR EACH ROW WHEN")); // every update writes a new xmin
+		}
+
+	@Test
+	public void testUnversioned()
+		{
+		try
+			{
+			getDDL(getConfiguration(PersistentUnversionedObject.class));
+			fail("An entity without version nor xmin cannot be monitored");
+			}
+		catch (HibernateException e)
+			{
+			assertTrue(e.getMessage().contains("non versioned entities"));
+			}
+		}
+	}
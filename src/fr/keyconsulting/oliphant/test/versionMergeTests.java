@@ -0,0 +1,274 @@
+/*******************************************************************************
+
+   Copyright (C) 2009-2010 Key Consulting
+
+   This file is part of Oliphant.
+
+   Oliphant is free software: you can redistribute it and/or modify
+   it under the terms of the GNU Lesser General Public License as published
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Oliphant is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU Lesser General Public License for more details.
+
+   You should have received a copy of the GNU Lesser General Public
+   License along with Oliphant.  If not, see <http://www.gnu.org/licenses/>.
+
+*******************************************************************************/
+
+package fr.keyconsulting.oliphant.test;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import fr.keyconsulting.oliphant.ChangeFilter;
+import fr.keyconsulting.oliphant.Notification;
+import fr.keyconsulting.oliphant.VersionRegistry;
+
+// Version registry merging, without a database
+public class versionMergeTests
+	{
+	private final int NB_ROWS = 64;
+	private final int NB_WRITERS = 4;
+	private final int NB_READERS = 4;
+	private final int NB_WRITES = 20000; // per writer
+	private final int NB_REORDERED = 8; // notifications delivered in random order
+
+	@Test
+	public void testOutOfOrderNotifications()
+		{
+		VersionRegistry registry = new VersionRegistry(0, null);
+		String uid = VersionRegistry.getUid("t", "1");
+		registry.update(uid, "3");
+		registry.update(uid, "2");
+		assertEquals("3", registry.get(uid));
+		registry.update(uid, "10");
+		assertEquals("10", registry.get(uid));
+		}
+
+	@Test
+	public void testSeedDoesNotGoBack()
+		{
+		VersionRegistry registry = new VersionRegistry(0, null);
+		String uid = VersionRegistry.getUid("t", "1");
+		registry.update(uid, "5");
+		registry.seed("t", "1", "4");
+		assertEquals("5", registry.get(uid));
+		registry.seed("t", "1", "6");
+		assertEquals("6", registry.get(uid));
+		}
+
+	@Test
+	public void testTombstones()
+		{
+		VersionRegistry registry = new VersionRegistry(0, null);
+		String uid = VersionRegistry.getUid("t", "1");
+		registry.update(uid, "5");
+		registry.update(uid, null, Notification.Operation.DELETE);
+		registry.update(uid, "6");
+		registry.seed("t", "1", "7");
+		assertEquals(VersionRegistry.DELETED, registry.get(uid));
+		assertTrue(VersionRegistry.isNewer(registry.get(uid), "7"));
+		registry.update(uid, "0", Notification.Operation.INSERT);
+		assertEquals("0", registry.get(uid));
+		}
+
+	@Test
+	public void testVersionTypes()
+		{
+		assertTrue(VersionRegistry.compareVersions("10", "9") > 0);
+		assertTrue(VersionRegistry.compareVersions("9", "10") < 0);
+		assertEquals(0, VersionRegistry.compareVersions("2010-03-01 10:00:00.0", "2010-03-01 10:00:00"));
+		assertTrue(VersionRegistry.compareVersions("2010-03-01 10:00:00.000002", "2010-03-01 10:00:00.000001") > 0);
+		assertTrue(VersionRegistry.compareVersions("2010-03-01 09:00:00.5", "2010-03-01 10:00:00") < 0);
+		assertFalse(VersionRegistry.isNewer(null, "1"));
+		assertFalse(VersionRegistry.isNewer("1", "2"));
+		}
+
+	// xmin versions wrap around after 2^32 transactions
+	@Test
+	public void testTransactionIdVersions()
+		{
+		String x = VersionRegistry.XID_PREFIX;
+		assertTrue(VersionRegistry.compareVersions(x+"1001", x+"1000") > 0);
+		assertTrue(VersionRegistry.compareVersions(x+"1000", x+"1001") < 0);
+		assertTrue(VersionRegistry.compareVersions(x+"3", x+"4294967290") > 0);
+		assertTrue(VersionRegistry.compareVersions(x+"4294967290", x+"3") < 0);
+		VersionRegistry registry = new VersionRegistry(0, null);
+		String uid = VersionRegistry.getUid("t", "1");
+		registry.update(uid, x+"4294967290");
+		registry.update(uid, x+"5");
+		registry.update(uid, x+"4294967295"); // late
+		assertEquals(x+"5", registry.get(uid));
+		}
+
+	// Loaded objects make room for notified ones, whose changes would go undetected once evicted
+	@Test
+	public void testEvictionKeepsNotified()
+		{
+		ChangeFilter filter = new ChangeFilter(16, 0.01);
+		VersionRegistry registry = new VersionRegistry(3, filter);
+		registry.update(VersionRegistry.getUid("t", "1"), "2");
+		registry.seed("t", "2", "1");
+		registry.update(VersionRegistry.getUid("t", "3"), "2");
+		registry.seed("t", "4", "1");
+		assertEquals(3, registry.size());
+		assertNull(registry.get(VersionRegistry.getUid("t", "2")));
+		assertEquals("2", registry.get(VersionRegistry.getUid("t", "1")));
+		registry.update(VersionRegistry.getUid("t", "4"), "3"); // notified after its load
+		registry.update(VersionRegistry.getUid("t", "5"), "2");
+		assertEquals(3, registry.size());
+		assertNull(registry.get(VersionRegistry.getUid("t", "1"))); // nothing else left to evict
+		assertEquals(3, filter.getEntryCount());
+		assertEquals("3", registry.getLatestVersion("t", "4"));
+		}
+
+	// Loaded versions are returned through the filter once they can make an object stale, and restored ones always
+	@Test
+	public void testSeedReadBack()
+		{
+		ChangeFilter filter = new ChangeFilter(16, 0.01);
+		VersionRegistry registry = new VersionRegistry(2, filter);
+		registry.seed("t", "1", "1");
+		assertEquals(0, filter.getEntryCount()); // nothing loaded before it is older
+		registry.seed("t", "1", "2");
+		assertEquals("2", registry.getLatestVersion("t", "1"));
+		assertEquals(1, filter.getEntryCount());
+		registry.restore(VersionRegistry.getUid("t", "2"), "5", false);
+		assertEquals("5", registry.getLatestVersion("t", "2"));
+		assertEquals(2, filter.getEntryCount());
+		registry.update(VersionRegistry.getUid("t", "1"), "3"); // already in the filter
+		assertEquals(2, filter.getEntryCount());
+		registry.seed("t", "3", "1"); // evicts the loaded entry of t#2
+		assertNull(registry.getLatestVersion("t", "2"));
+		assertEquals(1, filter.getEntryCount());
+		assertEquals(0, filter.getFalsePositiveCount());
+		}
+
+	@Test
+	public void testFilterAddRemove()
+		{
+		ChangeFilter filter = new ChangeFilter(100, 0.01);
+		assertFalse(filter.mightContain("t", "1"));
+		filter.add("t", "1");
+		filter.add("t", "1");
+		assertTrue(filter.mightContain("t", "1"));
+		filter.remove("t", "1");
+		assertTrue(filter.mightContain("t", "1"));
+		filter.remove("t", "1");
+		assertFalse(filter.mightContain("t", "1"));
+		assertEquals(0, filter.getEntryCount());
+		assertEquals(2, filter.getNegativeCount());
+		assertEquals(2, filter.getPositiveCount());
+		}
+
+	// 4 bit counters stick at 15, so that removals never make a key shared by many others disappear
+	@Test
+	public void testFilterSaturation()
+		{
+		ChangeFilter filter = new ChangeFilter(1, 0.5);
+		for (int i=0; i<20; i++) {filter.add("t", "1");}
+		for (int i=0; i<20; i++) {filter.remove("t", "1");}
+		assertTrue(filter.mightContain("t", "1"));
+		}
+
+	@Test
+	public void testFilterFalsePositiveRate()
+		{
+		int n = 10000;
+		ChangeFilter filter = new ChangeFilter(n, 0.01);
+		for (int i=0; i<n; i++) {filter.add("t", String.valueOf(i));}
+		for (int i=0; i<n; i++) {assertTrue(filter.mightContain("t", String.valueOf(i)));}
+		int falsePositives = 0;
+		for (int i=n; i<11*n; i++)
+			{
+			if (filter.mightContain("t", String.valueOf(i))) {falsePositives++;}
+			}
+		assertTrue(filter.getExpectedFalsePositiveRate() < 0.015);
+		assertTrue((double) falsePositives / (10*n) < 0.02);
+		}
+
+	// Writers bump row versions and deliver their notifications out of order, while readers load rows and check them.
+	// Whatever the interleaving, the registry ends up with the latest version of each row.
+	@Test
+	public void testConcurrentWriters() throws InterruptedException
+		{
+		final VersionRegistry registry = new VersionRegistry(0, new ChangeFilter(NB_ROWS, 0.01));
+		final AtomicLongArray database = new AtomicLongArray(NB_ROWS);
+		final AtomicBoolean writing = new AtomicBoolean(true);
+
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int w=0; w<NB_WRITERS; w++)
+			{
+			final Random random = new Random(w);
+			writers.add(new Thread()
+				{
+				public void run()
+					{
+					List<String[]> pending = new ArrayList<String[]>();
+					for (int n=0; n<NB_WRITES; n++)
+						{
+						int row = random.nextInt(NB_ROWS);
+						long version = database.incrementAndGet(row);
+						pending.add(new String[] {VersionRegistry.getUid("t", String.valueOf(row)), String.valueOf(version)});
+						if (pending.size() == NB_REORDERED)
+							{
+							Collections.shuffle(pending, random);
+							for (int i=0; i<pending.size(); i++) {registry.update(pending.get(i)[0], pending.get(i)[1]);}
+							pending.clear();
+							}
+						}
+					for (int i=0; i<pending.size(); i++) {registry.update(pending.get(i)[0], pending.get(i)[1]);}
+					}
+				});
+			}
+
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int r=0; r<NB_READERS; r++)
+			{
+			final Random random = new Random(100 + r);
+			readers.add(new Thread()
+				{
+				public void run()
+					{
+					while (writing.get())
+						{
+						int row = random.nextInt(NB_ROWS);
+						String id = String.valueOf(row);
+						long loaded = database.get(row);
+						// what NotifyListener does on load, then when checking the object
+						registry.seed("t", id, String.valueOf(loaded));
+						registry.getLatestVersion("t", id);
+						}
+					}
+				});
+			}
+
+		for (int i=0; i<readers.size(); i++) {readers.get(i).start();}
+		for (int i=0; i<writers.size(); i++) {writers.get(i).start();}
+		for (int i=0; i<writers.size(); i++) {writers.get(i).join();}
+		writing.set(false);
+		for (int i=0; i<readers.size(); i++) {readers.get(i).join();}
+
+		// Once every notification is in, the registry holds the latest version of each row, or nothing for a row never loaded nor written
+		for (int row=0; row<NB_ROWS; row++)
+			{
+			String uid = VersionRegistry.getUid("t", String.valueOf(row));
+			if ((database.get(row) == 0) && (registry.get(uid) == null)) {continue;}
+			assertEquals(String.valueOf(database.get(row)), registry.get(uid));
+			}
+		}
+	}